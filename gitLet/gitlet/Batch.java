@@ -0,0 +1,94 @@
+package gitlet;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Runs a script of Gitlet commands, one per line, against a single
+ *  Repository.
+ *
+ *  Words are split at whitespace; double quotes group words and may
+ *  contain \" and \\. Blank lines and lines starting with # are skipped.
+ *  The line "checkpoint" saves the index; otherwise it is saved once,
+ *  when the script ends. A failing command, even one that crashes,
+ *  prints its error and the script goes on with the next line.
+ */
+class Batch {
+
+    /** Run the script in SOURCE, a file name or - for standard input. */
+    static void run(Repository repo, String source) {
+        try (BufferedReader in = source.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(source), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                if (trimmed.equals("checkpoint")) {
+                    repo.flush();
+                    continue;
+                }
+                try {
+                    String[] args = split(trimmed).toArray(new String[0]);
+                    if (args[0].equals("batch") || args[0].equals("daemon")) {
+                        throw new GitletException("Cannot run " + args[0] + " inside a batch.");
+                    }
+                    Main.execute(repo, args);
+                } catch (GitletException excp) {
+                    System.out.println(excp.getMessage());
+                } catch (RuntimeException excp) {
+                    excp.printStackTrace(System.out);
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read " + source);
+        }
+    }
+
+    /** The words of LINE. */
+    static List<String> split(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean inWord = false;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quoted) {
+                if (c == '"') {
+                    quoted = false;
+                } else if (c == '\\' && i + 1 < line.length()
+                        && (line.charAt(i + 1) == '"' || line.charAt(i + 1) == '\\')) {
+                    word.append(line.charAt(++i));
+                } else {
+                    word.append(c);
+                }
+            } else if (c == '"') {
+                quoted = true;
+                inWord = true;
+            } else if (Character.isWhitespace(c)) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            throw new GitletException("Unterminated quote in: " + line);
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+}
@@ -0,0 +1,140 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+/** Micro-benchmarks for Gitlet internals, invoked as
+ *      java gitlet.Bench codec [COMMITS] [FILES]
+ *      java gitlet.Bench checkout [FILES] [SIZE]
+ *  Numbers are wall-clock and only meant for comparing two code paths
+ *  on the same machine.
+ */
+public class Bench {
+
+    public static void main(String... args) {
+        if (args.length == 0) {
+            System.out.println("Usage: java gitlet.Bench codec [COMMITS] [FILES]"
+                    + " | checkout [FILES] [SIZE]");
+            return;
+        }
+        switch (args[0]) {
+            case "codec":
+                codec(intArg(args, 1, 2000), intArg(args, 2, 200));
+                break;
+            case "checkout":
+                checkout(intArg(args, 1, 2000), intArg(args, 2, 16384));
+                break;
+            default:
+                System.out.println("No benchmark with that name exists.");
+                break;
+        }
+    }
+
+    private static int intArg(String[] args, int i, int dflt) {
+        return args.length > i ? Integer.parseInt(args[i]) : dflt;
+    }
+
+    /** Read the file lists of COMMITS commits of FILES paths each, both
+     *  from Java serialization and from CommitCodec. The codec form names
+     *  a root tree, so its side decodes the header and then every tree
+     *  under it from the store. Must run inside a scratch Gitlet
+     *  directory, where the trees are written. */
+    private static void codec(int commits, int files) {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            System.out.println("Run this inside an initialized Gitlet directory.");
+            return;
+        }
+        HashMap<String, String> list = new HashMap<>();
+        for (int i = 0; i < files; i++) {
+            list.put("src/module" + (i % 17) + "/File" + i + ".java", Utils.sha1("blob" + i));
+        }
+        Commit c = new Commit("benchmark commit", Utils.sha1("parent"));
+        c.addStaged(list);
+        byte[] serialized = Utils.serialize(c);
+        byte[] encoded = CommitCodec.encode(c);
+        HashSet<String> trees = new HashSet<>();
+        Tree.mark(c.getTree(), trees, new HashSet<>());
+        long treeBytes = 0;
+        for (String id : trees) {
+            treeBytes += ObjectStore.readTree(id).length;
+        }
+        System.out.printf("size: serialized %d bytes, codec %d bytes + %d trees of %d bytes%n",
+                serialized.length, encoded.length, trees.size(), treeBytes);
+
+        for (int round = 0; round < 3; round++) {
+            long t0 = System.nanoTime();
+            int sink = 0;
+            for (int i = 0; i < commits; i++) {
+                sink += CommitCodec.decode(serialized).getList().size();
+            }
+            long t1 = System.nanoTime();
+            for (int i = 0; i < commits; i++) {
+                sink += CommitCodec.decode(encoded).getList().size();
+            }
+            long t2 = System.nanoTime();
+            System.out.printf("round %d: serialized %.1f us/commit, codec %.1f us/commit,"
+                    + " speedup %.1fx (%d)%n", round,
+                    (t1 - t0) / 1e3 / commits, (t2 - t1) / 1e3 / commits,
+                    (double) (t1 - t0) / (t2 - t1), sink);
+        }
+    }
+
+    /** Check out FILES random blobs of SIZE bytes with 1, 2, 4 ... writer
+     *  threads, up to the number of cores. Must run inside a scratch
+     *  Gitlet directory; files go to bench-checkout/ and are removed. */
+    private static void checkout(int files, int size) {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            System.out.println("Run this inside an initialized Gitlet directory.");
+            return;
+        }
+        Random random = new Random(42);
+        TreeMap<String, String> blobs = new TreeMap<>();
+        byte[] content = new byte[size];
+        for (int i = 0; i < files; i++) {
+            random.nextBytes(content);
+            String id = Utils.sha1((Object) content);
+            ObjectStore.writeBlob(id, content);
+            blobs.put("d" + (i % 32) + "/f" + i, id);
+        }
+        File root = Utils.join(Repository.CWD, "bench-checkout");
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> counts = new ArrayList<>();
+        for (int w = 1; w < cores; w *= 2) {
+            counts.add(w);
+        }
+        counts.add(cores);
+        /* One untimed pass to warm up the JIT and the page cache. */
+        Checkout.prepare(blobs, cores).install(root);
+        deleteTree(root);
+        long single = 0;
+        for (int w : counts) {
+            long t0 = System.nanoTime();
+            Checkout.prepare(blobs, w).install(root);
+            long t = System.nanoTime() - t0;
+            deleteTree(root);
+            if (w == 1) {
+                single = t;
+            }
+            System.out.printf("workers %2d: %8.1f ms, %8.0f files/s, speedup %.2fx%n",
+                    w, t / 1e6, files / (t / 1e9), (double) single / t);
+        }
+    }
+
+    private static void deleteTree(File root) {
+        try (Stream<Path> walk = Files.walk(root.toPath())) {
+            walk.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        } catch (IOException excp) {
+            throw new GitletException("Cannot clean up " + root);
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static gitlet.Utils.*;
+
+/** On-disk form of blob contents.
+ *
+ *  A stored blob starts with the header  0 'G' 'B' 'Z'  algorithm(1)
+ *  size(8), where algorithm is STORED or DEFLATE and size is the length
+ *  of the original contents; the (possibly compressed) contents follow.
+ *  Blobs written before this format have no header and are raw.
+ *
+ *  A blob's id is always the SHA1 of its original contents, and writing
+ *  hashes and compresses in one pass over the source. Contents are only
+ *  ever streamed through fixed-size buffers, so memory use does not grow
+ *  with file size.
+ */
+class Blob {
+
+    static final int STORED = 0;
+    static final int DEFLATE = 1;
+    private static final byte[] MAGIC = {0, 'G', 'B', 'Z'};
+    static final int HEADER_SIZE = MAGIC.length + 1 + 8;
+    /** Config key holding the Deflate level, 0 to store uncompressed. */
+    static final String LEVEL_KEY = "core.compression";
+
+    private static final int BUFSIZE = 64 * 1024;
+    /** Largest region mapped at once when comparing files. */
+    private static final long MAP_CHUNK = 64L << 20;
+
+    static int level() {
+        int level = Config.getInt(LEVEL_KEY, Deflater.DEFAULT_COMPRESSION);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new GitletException("core.compression must be between -1 and 9.");
+        }
+        return level;
+    }
+
+    /** Copy SOURCE into the store, hashing and compressing it in a single
+     *  pass. Returns its id; the store is left alone if it already has it. */
+    static String store(File source) {
+        File tmp = tempFile();
+        MessageDigest md = PackFile.newDigest();
+        try (FileChannel in = FileChannel.open(source.toPath())) {
+            writeEncoded(tmp, in.size(), in, md);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot store " + source.getName());
+        }
+        return install(tmp, ObjectStore.toHex(md.digest()));
+    }
+
+    /** Store CONTENT, already known to hash to ID. */
+    static void store(String id, byte[] content) {
+        File tmp = tempFile();
+        try {
+            writeEncoded(tmp, content.length,
+                    Channels.newChannel(new ByteArrayInputStream(content)), null);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot store blob " + id);
+        }
+        install(tmp, id);
+    }
+
+    private static File tempFile() {
+        try {
+            return File.createTempFile("blob", ".tmp", Repository.BLOB_DIR);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot create a file in the blob store.");
+        }
+    }
+
+    private static String install(File tmp, String id) {
+        if (ObjectStore.hasBlob(id)) {
+            tmp.delete();
+            return id;
+        }
+        try {
+            Files.move(tmp.toPath(), join(Repository.BLOB_DIR, id).toPath(),
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot store blob " + id);
+        }
+        return id;
+    }
+
+    /** Write header and contents of IN, SIZE bytes long, to DEST through
+     *  two fixed direct buffers. MD, if not null, sees the original bytes
+     *  as they stream past. */
+    private static void writeEncoded(File dest, long size, ReadableByteChannel in,
+                                     MessageDigest md) throws IOException {
+        int level = level();
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+            head.put(MAGIC).put((byte) (level == 0 ? STORED : DEFLATE)).putLong(size).flip();
+            writeFully(out, head);
+            Deflater deflater = level == 0 ? null : new Deflater(level);
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFSIZE);
+            ByteBuffer zbuf = deflater == null ? null : ByteBuffer.allocateDirect(BUFSIZE);
+            try {
+                while (in.read(buf) >= 0) {
+                    buf.flip();
+                    if (md != null) {
+                        md.update(buf.duplicate());
+                    }
+                    if (deflater == null) {
+                        writeFully(out, buf);
+                    } else {
+                        deflater.setInput(buf.slice());
+                        while (!deflater.needsInput()) {
+                            drain(deflater, zbuf, out);
+                        }
+                    }
+                    buf.clear();
+                }
+                if (deflater != null) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        drain(deflater, zbuf, out);
+                    }
+                }
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+            }
+        }
+    }
+
+    private static void drain(Deflater deflater, ByteBuffer zbuf, FileChannel out)
+            throws IOException {
+        deflater.deflate(zbuf);
+        zbuf.flip();
+        writeFully(out, zbuf);
+        zbuf.clear();
+    }
+
+    static void writeFully(WritableByteChannel out, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /** {data offset, algorithm, original size} of the stored blob open as
+     *  CH, where a blob without a header is raw. */
+    private static long[] header(FileChannel ch) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(HEADER_SIZE);
+        ch.read(head, 0);
+        head.flip();
+        if (head.remaining() < HEADER_SIZE || head.get(0) != MAGIC[0]
+                || head.get(1) != MAGIC[1] || head.get(2) != MAGIC[2] || head.get(3) != MAGIC[3]) {
+            return new long[] {0, STORED, ch.size()};
+        }
+        return new long[] {HEADER_SIZE, head.get(4), head.getLong(5)};
+    }
+
+    /** Original size of the loose blob stored in FILE. */
+    static long size(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return header(ch)[2];
+        }
+    }
+
+    /** Original size of the stored blob read from IN, LENGTH bytes long
+     *  as stored. */
+    static long size(InputStream in, long length) throws IOException {
+        byte[] head = in.readNBytes(HEADER_SIZE);
+        if (head.length < HEADER_SIZE || head[0] != MAGIC[0] || head[1] != MAGIC[1]
+                || head[2] != MAGIC[2] || head[3] != MAGIC[3]) {
+            return length;
+        }
+        return ByteBuffer.wrap(head).getLong(5);
+    }
+
+    /** The original contents of the stored blob in RAW, which is either a
+     *  headed blob or a pre-header raw one. */
+    static InputStream decode(InputStream raw) throws IOException {
+        BufferedInputStream in = new BufferedInputStream(raw, BUFSIZE);
+        in.mark(HEADER_SIZE);
+        byte[] head = new byte[HEADER_SIZE];
+        int got = in.readNBytes(head, 0, HEADER_SIZE);
+        if (got < HEADER_SIZE || head[0] != MAGIC[0] || head[1] != MAGIC[1]
+                || head[2] != MAGIC[2] || head[3] != MAGIC[3]) {
+            in.reset();
+            return in;
+        }
+        switch (head[4]) {
+            case STORED:
+                return in;
+            case DEFLATE:
+                return new InflaterInputStream(in, new Inflater(), BUFSIZE);
+            default:
+                throw new GitletException("Unknown blob compression " + head[4]);
+        }
+    }
+
+    /** DATA compressed at the repository's level. */
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(level());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 16);
+        try (DeflaterOutputStream z = new DeflaterOutputStream(out, deflater)) {
+            z.write(data);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot compress.");
+        } finally {
+            deflater.end();
+        }
+        return out.toByteArray();
+    }
+
+    /** The inflated contents of DATA from OFFSET on. */
+    static byte[] inflate(byte[] data, int offset) {
+        try (InputStream in = new InflaterInputStream(
+                new ByteArrayInputStream(data, offset, data.length - offset))) {
+            return in.readAllBytes();
+        } catch (IOException excp) {
+            throw new GitletException("Corrupt compressed data.");
+        }
+    }
+
+    /** Stream the contents of blob ID into DEST, replacing it. */
+    static void copyTo(String id, File dest) {
+        dest.getParentFile().mkdirs();
+        try (FileChannel out = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeTo(id, out);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write " + dest.getName());
+        }
+    }
+
+    /** Append the contents of blob ID to OUT. Uncompressed loose blobs go
+     *  straight from file to file; others are inflated a buffer at a time. */
+    static void writeTo(String id, FileChannel out) throws IOException {
+        File loose = join(Repository.BLOB_DIR, id);
+        if (loose.isFile()) {
+            try (FileChannel in = FileChannel.open(loose.toPath())) {
+                long[] head = header(in);
+                if (head[1] == STORED) {
+                    transfer(in, head[0], head[2], out);
+                    return;
+                }
+            }
+        }
+        try (ReadableByteChannel in = Channels.newChannel(ObjectStore.openBlob(id))) {
+            long n;
+            while ((n = out.transferFrom(in, out.position(), BUFSIZE)) > 0) {
+                out.position(out.position() + n);
+            }
+        }
+    }
+
+    /** Copy COUNT bytes of IN from FROM onwards to the end of OUT. */
+    static void transfer(FileChannel in, long from, long count, FileChannel out)
+            throws IOException {
+        long done = 0;
+        while (done < count) {
+            long n = in.transferTo(from + done, count - done, out);
+            if (n <= 0) {
+                throw new IOException("short transfer");
+            }
+            done += n;
+        }
+    }
+
+    /** True if FILE holds exactly the contents of blob ID. An uncompressed
+     *  loose blob is compared in place through memory-mapped regions, and
+     *  any loose blob of the wrong size is rejected without reading it. */
+    static boolean matches(String id, File file) {
+        File loose = join(Repository.BLOB_DIR, id);
+        if (loose.isFile()) {
+            try (FileChannel blob = FileChannel.open(loose.toPath());
+                 FileChannel work = FileChannel.open(file.toPath())) {
+                long[] head = header(blob);
+                if (head[2] != work.size()) {
+                    return false;
+                }
+                if (head[1] == STORED) {
+                    return sameRegion(blob, head[0], work, head[2]);
+                }
+            } catch (IOException excp) {
+                throw new GitletException("Cannot read " + file.getName());
+            }
+        }
+        return hash(file).equals(id);
+    }
+
+    /** True if LENGTH bytes of A from AFROM equal the start of B. */
+    private static boolean sameRegion(FileChannel a, long aFrom, FileChannel b, long length)
+            throws IOException {
+        for (long at = 0; at < length; at += MAP_CHUNK) {
+            long n = Math.min(MAP_CHUNK, length - at);
+            if (!a.map(FileChannel.MapMode.READ_ONLY, aFrom + at, n)
+                    .equals(b.map(FileChannel.MapMode.READ_ONLY, at, n))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** The id FILE would have as a blob, computed by streaming it through a
+     *  direct buffer. */
+    static String hash(File file) {
+        MessageDigest md = PackFile.newDigest();
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFSIZE);
+        try (FileChannel in = FileChannel.open(file.toPath())) {
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read " + file.getName());
+        }
+        return ObjectStore.toHex(md.digest());
+    }
+}
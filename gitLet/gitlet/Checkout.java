@@ -0,0 +1,180 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/** Writes many blobs into the working tree at once.
+ *
+ *  prepare() reads, inflates and writes every blob into a scratch
+ *  directory on a pool of checkout.workers threads; the working tree is
+ *  not touched until all of them have succeeded. install() then renames
+ *  the finished files into place, setting aside the files they replace
+ *  so that a failed rename can be rolled back. If any blob fails, every
+ *  scratch file is removed and the error for the first failing path, in
+ *  path order, is reported, so the outcome does not depend on thread
+ *  timing.
+ */
+class Checkout {
+
+    /** Config key for the number of writer threads. */
+    static final String WORKERS_KEY = "checkout.workers";
+    /** Scratch directory, on the same file system as the working tree. */
+    static final File SCRATCH_DIR = join(Repository.GITLET_DIR, "CHECKOUT");
+
+    private final List<String> paths = new ArrayList<>();
+    private final List<File> scratch = new ArrayList<>();
+
+    static int workers() {
+        return Config.threads(WORKERS_KEY);
+    }
+
+    /** Write FILES, paths to blob ids, into scratch files using WORKERS
+     *  threads. Throws GitletException, leaving nothing behind, if any
+     *  of them cannot be written. */
+    static Checkout prepare(SortedMap<String, String> files, int workers) {
+        Checkout c = new Checkout();
+        if (files.isEmpty()) {
+            return c;
+        }
+        SCRATCH_DIR.mkdirs();
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, files.size()));
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (Map.Entry<String, String> f : files.entrySet()) {
+                File tmp = join(SCRATCH_DIR, Integer.toString(c.paths.size()));
+                c.paths.add(f.getKey());
+                c.scratch.add(tmp);
+                String id = f.getValue();
+                pending.add(pool.submit(() -> Blob.copyTo(id, tmp)));
+            }
+            String failed = null;
+            for (int i = 0; i < pending.size(); i++) {
+                try {
+                    pending.get(i).get();
+                } catch (ExecutionException excp) {
+                    if (failed == null) {
+                        failed = c.paths.get(i);
+                    }
+                }
+            }
+            if (failed != null) {
+                c.abort();
+                throw new GitletException("Cannot check out " + failed);
+            }
+        } catch (InterruptedException excp) {
+            c.abort();
+            Thread.currentThread().interrupt();
+            throw new GitletException("Checkout interrupted.");
+        } finally {
+            pool.shutdownNow();
+        }
+        return c;
+    }
+
+    private void abort() {
+        for (File f : scratch) {
+            f.delete();
+        }
+        SCRATCH_DIR.delete();
+    }
+
+    /** Move every prepared file to its path under ROOT. */
+    void install(File root) {
+        install(root, List.of());
+    }
+
+    /** Delete DELETES, paths of files under ROOT, and then move every
+     *  prepared file to its path under ROOT. Files replaced or deleted
+     *  are first moved aside into the scratch directory, so if any step
+     *  fails every step already taken is undone, in reverse, and the
+     *  working tree is left as it was. */
+    void install(File root, List<String> deletes) {
+        /* For each step taken, the path changed and where its old file
+         *  went, or null if there was none. */
+        List<File> changed = new ArrayList<>();
+        List<File> saved = new ArrayList<>();
+        String path = null;
+        try {
+            for (String d : deletes) {
+                path = d;
+                File f = join(root, d);
+                File aside = moveAside(f, saved.size());
+                changed.add(f);
+                saved.add(aside);
+                /* Emptied directories go, so a file can replace one. */
+                prune(f.getParentFile(), root);
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                path = paths.get(i);
+                File dest = join(root, path);
+                File aside = dest.isFile() ? moveAside(dest, saved.size()) : null;
+                changed.add(dest);
+                saved.add(aside);
+                dest.getParentFile().mkdirs();
+                Files.move(scratch.get(i).toPath(), dest.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE);
+            }
+        } catch (IOException excp) {
+            undo(root, changed, saved);
+            abort();
+            throw new GitletException("Cannot check out " + path);
+        }
+        for (File f : saved) {
+            if (f != null) {
+                f.delete();
+            }
+        }
+        SCRATCH_DIR.delete();
+    }
+
+    /** Move FILE into the scratch directory as the Nth file set aside,
+     *  and return where it went. */
+    private static File moveAside(File file, int n) throws IOException {
+        SCRATCH_DIR.mkdirs();
+        File aside = join(SCRATCH_DIR, "old-" + n);
+        Files.move(file.toPath(), aside.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return aside;
+    }
+
+    /** Put back the files in SAVED over CHANGED, last step first. This
+     *  is the best that can be done after a failure; errors are ignored. */
+    private static void undo(File root, List<File> changed, List<File> saved) {
+        for (int i = changed.size() - 1; i >= 0; i--) {
+            File f = changed.get(i);
+            /* Only a file installed by this step can be here now. */
+            if (f.isFile()) {
+                f.delete();
+            }
+            if (saved.get(i) == null) {
+                prune(f.getParentFile(), root);
+                continue;
+            }
+            f.getParentFile().mkdirs();
+            try {
+                Files.move(saved.get(i).toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                continue;
+            }
+        }
+    }
+
+    /** Remove DIR and then its parents while they are empty, stopping at
+     *  ROOT. */
+    private static void prune(File dir, File root) {
+        while (!dir.equals(root) && dir.delete()) {
+            dir = dir.getParentFile();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static gitlet.Utils.*;
+
+/** Garbage collection: deletes the objects no branch can reach.
+ *
+ *  Marking starts from the given commits and staged blobs and follows
+ *  both parents of every commit through the commit-graph; the trees of
+ *  the marked commits are then walked on gc.workers threads. Objects
+ *  modified within the grace period are kept whether reachable or not,
+ *  along with everything they reach, so objects another command has
+ *  only just written are never lost. Sweeping deletes unmarked loose
+ *  files and rewrites every pack holding garbage into one new pack.
+ */
+class Collector {
+
+    /** Config keys for the marking threads and the grace period. */
+    static final String WORKERS_KEY = "gc.workers";
+    static final String GRACE_KEY = "gc.graceDays";
+    private static final int DEFAULT_GRACE_DAYS = 14;
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    /** Objects last modified after this time, in epoch milliseconds, are
+     *  inside the grace period. */
+    private final long cutoff;
+    private final Set<String> commits = ConcurrentHashMap.newKeySet();
+    private final Set<String> trees = ConcurrentHashMap.newKeySet();
+    private final Set<String> blobs = ConcurrentHashMap.newKeySet();
+    private final List<String> commitRoots = new ArrayList<>();
+    private final List<String> treeRoots = new ArrayList<>();
+    private int removed;
+    private long reclaimed;
+    private boolean removedCommits;
+
+    private Collector(long cutoff) {
+        this.cutoff = cutoff;
+    }
+
+    /** The configured grace period in milliseconds. */
+    static long grace() {
+        return Math.max(0, Config.getInt(GRACE_KEY, DEFAULT_GRACE_DAYS)) * DAY_MILLIS;
+    }
+
+    /** Remove every object that ROOTS, commit ids, and STAGED, blob ids,
+     *  do not reach and that is older than GRACE milliseconds. Returns
+     *  {objects removed, bytes reclaimed}. */
+    static long[] run(Collection<String> roots, Collection<String> staged, long grace) {
+        Collector gc = new Collector(System.currentTimeMillis() - grace);
+        gc.commitRoots.addAll(roots);
+        gc.blobs.addAll(staged);
+        gc.keepYoung();
+        gc.markCommits();
+        gc.markTrees(Config.threads(WORKERS_KEY));
+        gc.keepDeltaBases();
+        gc.sweepLoose(Repository.GITLET_DIR, gc.commits);
+        gc.sweepLoose(ObjectStore.TREE_DIR, gc.trees);
+        gc.sweepLoose(Repository.BLOB_DIR, gc.blobs);
+        gc.sweepPacks();
+        gc.invalidate();
+        return new long[] {gc.removed, gc.reclaimed};
+    }
+
+    private boolean young(File f) {
+        return f.lastModified() > cutoff;
+    }
+
+    /** Treat everything inside the grace period as a root. */
+    private void keepYoung() {
+        for (String name : looseIds(Repository.GITLET_DIR)) {
+            if (young(join(Repository.GITLET_DIR, name))) {
+                commitRoots.add(name);
+            }
+        }
+        for (String name : looseIds(ObjectStore.TREE_DIR)) {
+            if (young(join(ObjectStore.TREE_DIR, name))) {
+                treeRoots.add(name);
+            }
+        }
+        for (String name : looseIds(Repository.BLOB_DIR)) {
+            if (young(join(Repository.BLOB_DIR, name))) {
+                blobs.add(name);
+            }
+        }
+        for (PackFile p : ObjectStore.packs()) {
+            if (!young(p.file())) {
+                continue;
+            }
+            for (int pos = 0; pos < p.size(); pos++) {
+                String id = p.idAt(pos);
+                byte type = p.typeAt(pos);
+                if (type == PackFile.COMMIT) {
+                    commitRoots.add(id);
+                } else if (type == PackFile.TREE) {
+                    treeRoots.add(id);
+                } else {
+                    blobs.add(id);
+                }
+            }
+        }
+    }
+
+    private static List<String> looseIds(File dir) {
+        List<String> result = new ArrayList<>();
+        List<String> names = plainFilenamesIn(dir);
+        for (String name : names == null ? List.<String>of() : names) {
+            if (ObjectStore.isObjectId(name)) {
+                result.add(name);
+            }
+        }
+        return result;
+    }
+
+    /** Mark the roots and all their ancestors, by position in the graph. */
+    private void markCommits() {
+        CommitGraph graph = CommitGraph.open();
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        HashSet<Integer> seen = new HashSet<>();
+        for (String id : commitRoots) {
+            work.push(graph.lookup(id));
+        }
+        while (!work.isEmpty()) {
+            int pos = work.pop();
+            if (!seen.add(pos)) {
+                continue;
+            }
+            commits.add(graph.id(pos));
+            for (int p : new int[] {graph.parent(pos), graph.otherParent(pos)}) {
+                if (p >= 0) {
+                    work.push(p);
+                }
+            }
+        }
+    }
+
+    /** Mark the contents of every marked commit and young tree, one task
+     *  per object on WORKERS threads. Subtrees shared between commits are
+     *  walked once, by whichever task reaches them first. */
+    private void markTrees(int workers) {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<?>> pending = new ArrayList<>();
+        try {
+            for (String id : commits) {
+                pending.add(pool.submit(() -> {
+                    Commit c = ObjectStore.readCommit(id);
+                    if (c.storedTree() != null) {
+                        Tree.mark(c.storedTree(), trees, blobs);
+                    } else {
+                        blobs.addAll(c.getList().values());
+                    }
+                }));
+            }
+            for (String id : treeRoots) {
+                pending.add(pool.submit(() -> Tree.mark(id, trees, blobs)));
+            }
+            for (Future<?> f : pending) {
+                f.get();
+            }
+        } catch (ExecutionException excp) {
+            Throwable cause = excp.getCause();
+            throw cause instanceof GitletException ? (GitletException) cause
+                    : new GitletException("Cannot mark reachable objects.");
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw new GitletException("Garbage collection interrupted.");
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** Keep the base of every kept delta, down each chain. */
+    private void keepDeltaBases() {
+        ArrayDeque<String> work = new ArrayDeque<>();
+        for (PackFile p : ObjectStore.packs()) {
+            for (int pos = 0; pos < p.size(); pos++) {
+                if (p.typeAt(pos) == PackFile.DELTA && blobs.contains(p.idAt(pos))) {
+                    work.push(p.idAt(pos));
+                }
+            }
+        }
+        while (!work.isEmpty()) {
+            String id = work.pop();
+            for (PackFile p : ObjectStore.packs()) {
+                if (p.typeOf(id) == PackFile.DELTA) {
+                    String base = baseOf(p, id);
+                    if (blobs.add(base)) {
+                        work.push(base);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    private static String baseOf(PackFile p, String id) {
+        try (InputStream in = p.open(id)) {
+            return ObjectStore.toHex(in.readNBytes(20));
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read pack " + p.file().getName());
+        }
+    }
+
+    /** Delete the loose objects in DIR that are not in LIVE. */
+    private void sweepLoose(File dir, Set<String> live) {
+        for (String name : looseIds(dir)) {
+            File f = join(dir, name);
+            if (!live.contains(name) && !young(f)) {
+                long length = f.length();
+                if (f.delete()) {
+                    removed++;
+                    reclaimed += length;
+                    removedCommits |= dir.equals(Repository.GITLET_DIR);
+                }
+            }
+        }
+    }
+
+    /** Copy the live objects of every pack that holds garbage into a new
+     *  pack, then delete the old ones. */
+    private void sweepPacks() {
+        List<PackFile> dead = new ArrayList<>();
+        LinkedHashMap<String, PackFile.Entry> keep = new LinkedHashMap<>();
+        int garbage = 0;
+        long newest = 0;
+        for (PackFile p : ObjectStore.packs()) {
+            if (young(p.file())) {
+                continue;
+            }
+            List<PackFile.Entry> live = new ArrayList<>();
+            int unreachable = 0;
+            for (int pos = 0; pos < p.size(); pos++) {
+                String id = p.idAt(pos);
+                byte type = p.typeAt(pos);
+                Set<String> marked = type == PackFile.COMMIT ? commits
+                        : type == PackFile.TREE ? trees : blobs;
+                if (marked.contains(id)) {
+                    live.add(new PackFile.Entry(id, type, p));
+                } else {
+                    unreachable++;
+                    removedCommits |= type == PackFile.COMMIT;
+                }
+            }
+            if (unreachable > 0) {
+                dead.add(p);
+                garbage += unreachable;
+                newest = Math.max(newest, p.file().lastModified());
+                for (PackFile.Entry e : live) {
+                    keep.putIfAbsent(e.id, e);
+                }
+            }
+        }
+        if (dead.isEmpty()) {
+            return;
+        }
+        long before = 0;
+        for (PackFile p : dead) {
+            before += p.file().length() + p.indexFile().length();
+        }
+        long after = 0;
+        if (!keep.isEmpty()) {
+            File idx = PackFile.write(ObjectStore.PACK_DIR, new ArrayList<>(keep.values()));
+            PackFile fresh = new PackFile(idx);
+            /* Rewritten objects are no younger than the packs they came from. */
+            fresh.file().setLastModified(newest);
+            idx.setLastModified(newest);
+            after = fresh.file().length() + idx.length();
+            fresh.close();
+        }
+        ObjectStore.reload();
+        for (PackFile p : dead) {
+            p.file().delete();
+            p.indexFile().delete();
+        }
+        removed += garbage;
+        reclaimed += before - after;
+    }
+
+    /** Drop what may still name deleted objects. */
+    private void invalidate() {
+        ObjectStore.COMMITS.clear();
+        ObjectStore.BLOBS.clear();
+        if (!removedCommits) {
+            return;
+        }
+        CommitTable.TABLE_FILE.delete();
+        CommitTable.LOG_FILE.delete();
+        MessageIndex.INDEX_FILE.delete();
+        MessageIndex.LOG_FILE.delete();
+        if (CommitGraph.GRAPH_FILE.isFile()) {
+            CommitGraph.write();
+        }
+    }
+}
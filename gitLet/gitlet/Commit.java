@@ -1,19 +1,33 @@
 package gitlet;
 
-import java.io.File;
 import java.io.Serializable;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.TimeZone;
 
 import static gitlet.Utils.*;
 
 public class Commit implements Serializable {
 
+    /** Pinned so commits serialized before the binary codec still load. */
+    private static final long serialVersionUID = -8174398084556267835L;
+    private static final String DATE_FORMAT = "EEE MMM d HH:mm:ss yyyy Z";
+    private static final DateTimeFormatter DATE_PRINTER =
+            DateTimeFormatter.ofPattern(DATE_FORMAT);
+
     /** The message of this Commit. */
     private String message;
-    /** The commit time */
+    /** The commit time, formatted lazily from epochSeconds. */
     private String timestamp;
+    /** The commit time as seconds since the epoch and the UTC offset it
+     *  was made at, in minutes. Zero in commits written by Java
+     *  serialization; see CommitCodec. */
+    private long epochSeconds;
+    private int offsetMinutes;
     /** Linkage between Commits */
     private String parentID;
     /** Commit SHA1 */
@@ -23,8 +37,10 @@ public class Commit implements Serializable {
     private String mergeParents;
     private String otherParent;
     /** Blob log
-     *  File name, sha1 */
+     *  File name, sha1. Flattened from the tree on first use. */
     private HashMap<String, String> commitFiles;
+    /** Root tree; null in commits written before trees existed. */
+    private String treeID;
 
 
     /** Constructor for none-merge */
@@ -34,12 +50,7 @@ public class Commit implements Serializable {
         this.message = message;
         this.parentID = parentID;
 
-        SimpleDateFormat timeEpoch = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
-        if (parentID == null) {
-            this.timestamp = timeEpoch.format(new Date(0));
-        } else {
-            this.timestamp = timeEpoch.format(new Date());
-        }
+        stamp(parentID == null ? new Date(0) : new Date());
         this.ID = makeID();
         commitFiles = new HashMap<>();
     }
@@ -53,23 +64,44 @@ public class Commit implements Serializable {
         this.parentID = mainID;
         this.mergeParents = "Merge: " + mainID.substring(0, 7) + " " + mergeInID.substring(0, 7);
 
-        SimpleDateFormat timeEpoch = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
-        if (parentID == null) {
-            this.timestamp = timeEpoch.format(new Date(0));
-        } else {
-            this.timestamp = timeEpoch.format(new Date());
-        }
+        stamp(parentID == null ? new Date(0) : new Date());
         this.ID = makeID();
         commitFiles = new HashMap<>();
     }
 
+    /** Constructor for CommitCodec: every field is already known. Exactly
+     *  one of TREEID and COMMITFILES is null. */
+    Commit(String ID, String message, String parentID, String otherParent,
+           long epochSeconds, int offsetMinutes, String treeID,
+           HashMap<String, String> commitFiles) {
+        this.ID = ID;
+        this.message = message;
+        this.parentID = parentID;
+        this.otherParent = otherParent;
+        this.isMerge = otherParent != null;
+        if (isMerge) {
+            this.mergeParents = "Merge: " + parentID.substring(0, 7)
+                    + " " + otherParent.substring(0, 7);
+        }
+        this.epochSeconds = epochSeconds;
+        this.offsetMinutes = offsetMinutes;
+        this.treeID = treeID;
+        this.commitFiles = commitFiles;
+    }
+
+    private void stamp(Date when) {
+        SimpleDateFormat timeEpoch = new SimpleDateFormat(DATE_FORMAT);
+        this.timestamp = timeEpoch.format(when);
+        this.epochSeconds = when.getTime() / 1000;
+        this.offsetMinutes = TimeZone.getDefault().getOffset(when.getTime()) / 60000;
+    }
+
     public void addStaged(HashMap<String, String> outStage) {
         commitFiles.putAll(outStage);
     }
 
     public void saveCommit() {
-        File newSave = join(".gitlet", ID);
-        writeObject(newSave, this);
+        ObjectStore.writeCommit(this);
     }
 
     private String makeID() {
@@ -88,17 +120,75 @@ public class Commit implements Serializable {
     }
 
     public String getTimestamp() {
+        if (timestamp == null) {
+            timestamp = DATE_PRINTER.format(Instant.ofEpochSecond(epochSeconds)
+                    .atOffset(ZoneOffset.ofTotalSeconds(offsetMinutes * 60)));
+        }
         return this.timestamp;
     }
 
+    /** Commit time in seconds since the epoch. */
+    public long getTime() {
+        if (epochSeconds == 0 && timestamp != null) {
+            parseTimestamp();
+        }
+        return epochSeconds;
+    }
+
+    /** UTC offset of the commit time, in minutes. */
+    int getOffsetMinutes() {
+        if (epochSeconds == 0 && timestamp != null) {
+            parseTimestamp();
+        }
+        return offsetMinutes;
+    }
+
+    /** Recover epochSeconds and offsetMinutes for a commit that was
+     *  deserialized from the old format, which only kept the string. */
+    private void parseTimestamp() {
+        try {
+            SimpleDateFormat timeEpoch = new SimpleDateFormat(DATE_FORMAT);
+            epochSeconds = timeEpoch.parse(timestamp).getTime() / 1000;
+            String zone = timestamp.substring(timestamp.lastIndexOf(' ') + 1);
+            int hhmm = Integer.parseInt(zone.substring(1));
+            offsetMinutes = (zone.charAt(0) == '-' ? -1 : 1) * (hhmm / 100 * 60 + hhmm % 100);
+        } catch (java.text.ParseException | NumberFormatException excp) {
+            throw new GitletException("Bad timestamp in commit " + ID);
+        }
+    }
+
     public String getParent() {
         return this.parentID;
     }
 
     public HashMap<String, String> getList() {
+        if (commitFiles == null) {
+            commitFiles = Tree.flatten(treeID);
+        }
         return commitFiles;
     }
 
+    /** Id of the root tree, storing the trees first for a commit that
+     *  only has a flat file list. */
+    String getTree() {
+        if (treeID == null) {
+            treeID = Tree.write(commitFiles);
+        }
+        return treeID;
+    }
+
+    /** Id of the root tree as stored, or null for a commit that only has
+     *  a flat file list. Unlike getTree, never writes anything. */
+    String storedTree() {
+        return treeID;
+    }
+
+    /** Make TREE the contents of this commit. */
+    void setTree(String tree) {
+        this.treeID = tree;
+        this.commitFiles = null;
+    }
+
     public boolean isMerge() {
         return isMerge;
     }
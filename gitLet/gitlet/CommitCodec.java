@@ -0,0 +1,251 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static gitlet.Utils.*;
+
+/** Compact binary form of a Commit, replacing Java serialization.
+ *
+ *  "GC" version flags id [parent] [otherParent] epochSeconds(8)
+ *  offsetMinutes(zigzag varint) message(varint length + UTF-8) tree(20).
+ *
+ *  Version 1 had no tree; the message was followed by pathCount(varint)
+ *  and the paths in sorted order, each as sharedPrefix(varint)
+ *  suffixLength(varint) suffix blobId(20). It is still read.
+ *
+ *  Ids are raw 20-byte SHA1s. Anything starting with the Java
+ *  serialization magic is decoded the old way, so repositories written
+ *  before this format keep working; `migrate` rewrites them.
+ */
+class CommitCodec {
+
+    static final int VERSION = 2;
+    private static final int FLAT_VERSION = 1;
+    private static final byte MAGIC_0 = 'G';
+    private static final byte MAGIC_1 = 'C';
+    private static final int HAS_PARENT = 1;
+    private static final int HAS_OTHER_PARENT = 2;
+
+    /** True if DATA is in this format rather than Java serialization. */
+    static boolean isEncoded(byte[] data) {
+        return data.length > 2 && data[0] == MAGIC_0 && data[1] == MAGIC_1;
+    }
+
+    static byte[] encode(Commit c) {
+        Out out = new Out(128);
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        int flags = (c.getParent() != null ? HAS_PARENT : 0)
+                | (c.getOtherParent() != null ? HAS_OTHER_PARENT : 0);
+        out.put(flags);
+        out.putId(c.getID());
+        if (c.getParent() != null) {
+            out.putId(c.getParent());
+        }
+        if (c.getOtherParent() != null) {
+            out.putId(c.getOtherParent());
+        }
+        out.putLong(c.getTime());
+        out.putVarint((c.getOffsetMinutes() << 1) ^ (c.getOffsetMinutes() >> 31));
+        out.putString(c.getMessage());
+        out.putId(c.getTree());
+        return out.toByteArray();
+    }
+
+    /** True if DATA is in the latest version of this format. */
+    static boolean isCurrent(byte[] data) {
+        return isEncoded(data) && data[2] == VERSION;
+    }
+
+    static Commit decode(byte[] data) {
+        if (!isEncoded(data)) {
+            return decodeSerialized(data);
+        }
+        In in = new In(data);
+        in.pos = 2;
+        int version = in.get();
+        if (version != VERSION && version != FLAT_VERSION) {
+            throw new GitletException("Unsupported commit format " + version);
+        }
+        int flags = in.get();
+        String id = in.getId();
+        String parent = (flags & HAS_PARENT) != 0 ? in.getId() : null;
+        String other = (flags & HAS_OTHER_PARENT) != 0 ? in.getId() : null;
+        long epochSeconds = in.getLong();
+        int zz = (int) in.getVarint();
+        int offsetMinutes = (zz >>> 1) ^ -(zz & 1);
+        String message = in.getString();
+        if (version == VERSION) {
+            return new Commit(id, message, parent, other, epochSeconds, offsetMinutes,
+                    in.getId(), null);
+        }
+
+        int count = (int) in.getVarint();
+        HashMap<String, String> files = new HashMap<>(Math.max(16, count * 4 / 3 + 1));
+        byte[] prev = new byte[0];
+        for (int i = 0; i < count; i++) {
+            int shared = (int) in.getVarint();
+            int suffix = (int) in.getVarint();
+            byte[] cur = Arrays.copyOf(prev, shared + suffix);
+            System.arraycopy(data, in.pos, cur, shared, suffix);
+            in.pos += suffix;
+            files.put(new String(cur, StandardCharsets.UTF_8), in.getId());
+            prev = cur;
+        }
+        return new Commit(id, message, parent, other, epochSeconds, offsetMinutes, null, files);
+    }
+
+    /** Commits written by Utils.writeObject before this codec existed. */
+    private static Commit decodeSerialized(byte[] data) {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data))) {
+            return (Commit) in.readObject();
+        } catch (IOException | ClassNotFoundException | ClassCastException excp) {
+            throw new GitletException("Corrupt commit object.");
+        }
+    }
+
+    /** A growable byte buffer with the few writers the format needs. */
+    static class Out {
+        private byte[] buf;
+        private int size;
+
+        Out(int capacity) {
+            buf = new byte[Math.max(16, capacity)];
+        }
+
+        private void ensure(int n) {
+            if (size + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+            }
+        }
+
+        void put(int b) {
+            ensure(1);
+            buf[size++] = (byte) b;
+        }
+
+        void put(byte[] b, int off, int len) {
+            ensure(len);
+            System.arraycopy(b, off, buf, size, len);
+            size += len;
+        }
+
+        void putInt(int v) {
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                put(v >>> shift);
+            }
+        }
+
+        void putLong(long v) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                put((int) (v >>> shift));
+            }
+        }
+
+        void putVarint(long v) {
+            while ((v & ~0x7fL) != 0) {
+                put((int) ((v & 0x7f) | 0x80));
+                v >>>= 7;
+            }
+            put((int) v);
+        }
+
+        void putString(String s) {
+            byte[] b = s.getBytes(StandardCharsets.UTF_8);
+            putVarint(b.length);
+            put(b, 0, b.length);
+        }
+
+        void putId(String hex) {
+            byte[] raw = ObjectStore.toBytes(hex);
+            put(raw, 0, raw.length);
+        }
+
+        int size() {
+            return size;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, size);
+        }
+    }
+
+    /** Reader over a byte array, mirroring Out. */
+    static class In {
+        private final byte[] data;
+        int pos;
+
+        In(byte[] data) {
+            this.data = data;
+        }
+
+        int get() {
+            return data[pos++] & 0xff;
+        }
+
+        int getInt() {
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                v = (v << 8) | get();
+            }
+            return v;
+        }
+
+        long getLong() {
+            long v = 0;
+            for (int i = 0; i < 8; i++) {
+                v = (v << 8) | get();
+            }
+            return v;
+        }
+
+        long getVarint() {
+            long v = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = get();
+                v |= (long) (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return v;
+        }
+
+        String getString() {
+            int len = (int) getVarint();
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+
+        String getId() {
+            byte[] raw = Arrays.copyOfRange(data, pos, pos + 20);
+            pos += 20;
+            return ObjectStore.toHex(raw);
+        }
+    }
+
+    /** Re-encode every loose commit still in an older format, storing its
+     *  files as trees. Returns how many were rewritten. */
+    static int migrate() {
+        int rewritten = 0;
+        for (String name : plainFilenamesIn(Repository.GITLET_DIR)) {
+            if (ObjectStore.isObjectId(name)) {
+                File f = join(Repository.GITLET_DIR, name);
+                byte[] data = readContents(f);
+                if (!isCurrent(data)) {
+                    writeContents(f, (Object) encode(decode(data)));
+                    rewritten++;
+                }
+            }
+        }
+        return rewritten;
+    }
+}
@@ -0,0 +1,270 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import static gitlet.Utils.*;
+
+/** The shape of the commit DAG, so history walks need not open one file
+ *  per commit.
+ *
+ *  .gitlet/commit-graph:  "GGRF" version count, int[256] cumulative fan-out
+ *  by first id byte, count raw 20-byte ids in sorted order, then per
+ *  commit [int parent][int otherParent][long time][int generation].
+ *  Parents are positions in the same table, -1 for none. A commit's
+ *  generation is one more than the largest generation of its parents,
+ *  so a commit can only reach commits of strictly smaller generation.
+ *
+ *  Commits made after the file was written are resolved on demand and
+ *  given positions past the end of the file, so callers always walk ints.
+ */
+class CommitGraph {
+
+    static final File GRAPH_FILE = join(Repository.GITLET_DIR, "commit-graph");
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'G', 'R', 'F'};
+    private static final int HEADER = 12 + 256 * 4;
+    private static final int ID_BYTES = 20;
+    private static final int ROW = 20;
+
+    /** The mapped file, or null when there is none yet. */
+    private final MappedByteBuffer file;
+    /** Number of commits in the file. */
+    private final int count;
+
+    /** Commits not in the file, at positions count, count + 1, ... */
+    private final List<String> extraIds = new ArrayList<>();
+    private final List<int[]> extraRows = new ArrayList<>();
+    private final List<Long> extraTimes = new ArrayList<>();
+    private final HashMap<String, Integer> extraPos = new HashMap<>();
+
+    private CommitGraph(MappedByteBuffer file) {
+        this.file = file;
+        this.count = file == null ? 0 : file.getInt(8);
+    }
+
+    /** The graph for this repository. Missing or unreadable files yield
+     *  an empty graph that resolves everything on demand. */
+    static CommitGraph open() {
+        if (!GRAPH_FILE.isFile()) {
+            return new CommitGraph(null);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(GRAPH_FILE, "r")) {
+            MappedByteBuffer buf = raf.getChannel()
+                    .map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            byte[] magic = new byte[4];
+            buf.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || buf.getInt(4) != VERSION) {
+                return new CommitGraph(null);
+            }
+            return new CommitGraph(buf);
+        } catch (IOException excp) {
+            return new CommitGraph(null);
+        }
+    }
+
+    /** Number of commits known so far, in the file or resolved since. */
+    int size() {
+        return count + extraIds.size();
+    }
+
+    /** Position of commit ID, loading it and any ancestors missing from
+     *  the file. */
+    int lookup(String id) {
+        int pos = findInFile(ObjectStore.toBytes(id));
+        if (pos >= 0) {
+            return pos;
+        }
+        Integer extra = extraPos.get(id);
+        if (extra != null) {
+            return extra;
+        }
+        return resolve(id);
+    }
+
+    /** Bring ID and its unresolved ancestors in, parents first. */
+    private int resolve(String id) {
+        ArrayDeque<Commit> pending = new ArrayDeque<>();
+        pending.push(ObjectStore.readCommit(id));
+        while (!pending.isEmpty()) {
+            Commit c = pending.peek();
+            String missing = null;
+            for (String p : new String[] {c.getParent(), c.getOtherParent()}) {
+                if (p != null && findInFile(ObjectStore.toBytes(p)) < 0
+                        && !extraPos.containsKey(p)) {
+                    missing = p;
+                }
+            }
+            if (missing != null) {
+                pending.push(ObjectStore.readCommit(missing));
+                continue;
+            }
+            pending.pop();
+            if (extraPos.containsKey(c.getID())) {
+                continue;
+            }
+            int parent = c.getParent() == null ? -1 : lookup(c.getParent());
+            int other = c.getOtherParent() == null ? -1 : lookup(c.getOtherParent());
+            int gen = 1 + Math.max(parent < 0 ? 0 : generation(parent),
+                    other < 0 ? 0 : generation(other));
+            extraPos.put(c.getID(), size());
+            extraIds.add(c.getID());
+            extraRows.add(new int[] {parent, other, gen});
+            extraTimes.add(c.getTime());
+        }
+        return extraPos.get(id);
+    }
+
+    /** Position of ID if the file has it, else -1. Never opens commits. */
+    int find(String id) {
+        return findInFile(ObjectStore.toBytes(id));
+    }
+
+    private int findInFile(byte[] id) {
+        if (file == null) {
+            return -1;
+        }
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : file.getInt(12 + (first - 1) * 4);
+        int hi = file.getInt(12 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int base = HEADER + mid * ID_BYTES;
+            int cmp = 0;
+            for (int i = 0; i < ID_BYTES && cmp == 0; i++) {
+                cmp = (file.get(base + i) & 0xff) - (id[i] & 0xff);
+            }
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int rowStart(int pos) {
+        return HEADER + count * ID_BYTES + pos * ROW;
+    }
+
+    String id(int pos) {
+        if (pos >= count) {
+            return extraIds.get(pos - count);
+        }
+        byte[] raw = new byte[ID_BYTES];
+        file.get(HEADER + pos * ID_BYTES, raw);
+        return ObjectStore.toHex(raw);
+    }
+
+    /** First parent of POS, or -1. */
+    int parent(int pos) {
+        return pos >= count ? extraRows.get(pos - count)[0] : file.getInt(rowStart(pos));
+    }
+
+    /** Second (merged-in) parent of POS, or -1. */
+    int otherParent(int pos) {
+        return pos >= count ? extraRows.get(pos - count)[1] : file.getInt(rowStart(pos) + 4);
+    }
+
+    /** Commit time of POS in epoch seconds. */
+    long time(int pos) {
+        return pos >= count ? extraTimes.get(pos - count) : file.getLong(rowStart(pos) + 8);
+    }
+
+    int generation(int pos) {
+        return pos >= count ? extraRows.get(pos - count)[2] : file.getInt(rowStart(pos) + 16);
+    }
+
+    /** True if commit A is B or an ancestor of B. Generation numbers cut
+     *  off every branch of the walk that has gone below A. */
+    boolean isAncestor(int a, int b) {
+        int floor = generation(a);
+        ArrayDeque<Integer> work = new ArrayDeque<>();
+        HashSet<Integer> seen = new HashSet<>();
+        work.push(b);
+        while (!work.isEmpty()) {
+            int c = work.pop();
+            if (c == a) {
+                return true;
+            }
+            if (!seen.add(c) || generation(c) <= floor) {
+                continue;
+            }
+            for (int p : new int[] {parent(c), otherParent(c)}) {
+                if (p >= 0) {
+                    work.push(p);
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Rewrite the file to cover every commit in the store. Rows already
+     *  in the old file are copied; only new commits are decoded. Returns
+     *  the number of commits written. */
+    static int write() {
+        CommitGraph old = open();
+        List<String> ids = ObjectStore.commitIds();
+        for (String id : ids) {
+            old.lookup(id);
+        }
+        int n = ids.size();
+        HashMap<String, Integer> newPos = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            newPos.put(ids.get(i), i);
+        }
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        File tmp = join(Repository.GITLET_DIR, "commit-graph.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            int running = 0;
+            for (int f : fanout) {
+                running += f;
+                out.writeInt(running);
+            }
+            for (String id : ids) {
+                out.write(ObjectStore.toBytes(id));
+            }
+            for (String id : ids) {
+                int pos = old.lookup(id);
+                int parent = old.parent(pos);
+                int other = old.otherParent(pos);
+                out.writeInt(parent < 0 ? -1 : newPos.get(old.id(parent)));
+                out.writeInt(other < 0 ? -1 : newPos.get(old.id(other)));
+                out.writeLong(old.time(pos));
+                out.writeInt(old.generation(pos));
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write commit-graph.");
+        }
+        try {
+            Files.move(tmp.toPath(), GRAPH_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot install commit-graph.");
+        }
+        return n;
+    }
+}
@@ -0,0 +1,201 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Sorted table of every commit id, for resolving abbreviated ids.
+ *
+ *  .gitlet/commit-ids:  "GCID" version count, int[256] cumulative
+ *  fan-out by first id byte, then count raw 20-byte ids in sorted order.
+ *  A prefix is resolved by binary search within the fan-out buckets it
+ *  can fall in.
+ *
+ *  Commits made since the table was written are appended, unsorted, to
+ *  .gitlet/commit-ids.log and scanned; the table is rewritten once the
+ *  log passes MAX_LOG ids. If a prefix matches nothing, the store is
+ *  searched and the table rebuilt before giving up, so commits written
+ *  by other tools are still found.
+ */
+class CommitTable {
+
+    static final File TABLE_FILE = join(Repository.GITLET_DIR, "commit-ids");
+    static final File LOG_FILE = join(Repository.GITLET_DIR, "commit-ids.log");
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'C', 'I', 'D'};
+    private static final int ID_BYTES = 20;
+    private static final int IDS_START = 12 + 256 * 4;
+    private static final int MAX_LOG = 1024;
+    /** Candidates listed when a prefix is ambiguous. */
+    private static final int SHOW = 5;
+
+    /** Note commit ID, which was just written. */
+    static void add(String id) {
+        if (!TABLE_FILE.isFile()) {
+            return;
+        }
+        try {
+            Files.write(LOG_FILE.toPath(), ObjectStore.toBytes(id),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot update the commit-id table.");
+        }
+    }
+
+    /** The full id of the one commit whose id starts with PREFIX. */
+    static String resolve(String prefix) {
+        String p = prefix.toLowerCase();
+        if (p.isEmpty() || p.length() > 40 || !p.matches("[0-9a-f]+")) {
+            throw new GitletException("No commit with that id exists.");
+        }
+        if (p.length() == 40 && ObjectStore.hasCommit(p)) {
+            return p;
+        }
+        TreeSet<String> found = new TreeSet<>();
+        if (TABLE_FILE.isFile() && LOG_FILE.length() <= MAX_LOG * ID_BYTES) {
+            found = matches(p);
+        }
+        if (found.isEmpty()) {
+            found = rebuild(p);
+        }
+        if (found.isEmpty()) {
+            throw new GitletException("No commit with that id exists.");
+        }
+        if (found.size() > 1) {
+            List<String> some = List.copyOf(found).subList(0, Math.min(SHOW, found.size()));
+            throw new GitletException("Commit id " + prefix + " is ambiguous; it matches "
+                    + String.join(", ", some) + (found.size() > SHOW ? ", ..." : "") + ".");
+        }
+        return found.first();
+    }
+
+    /** Ids in the table or the log starting with P. At most SHOW + 1 are
+     *  taken from the table, which is enough to report an ambiguity. */
+    private static TreeSet<String> matches(String p) {
+        TreeSet<String> found = new TreeSet<>();
+        byte[] lo = ObjectStore.toBytes(pad(p, '0'));
+        byte[] hi = ObjectStore.toBytes(pad(p, 'f'));
+        try (RandomAccessFile raf = new RandomAccessFile(TABLE_FILE, "r")) {
+            MappedByteBuffer table = raf.getChannel().map(
+                    FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            byte[] magic = new byte[4];
+            table.get(0, magic);
+            if (!Arrays.equals(magic, MAGIC) || table.getInt(4) != VERSION) {
+                throw new GitletException("Unsupported commit-id table.");
+            }
+            int first = lo[0] & 0xff;
+            int last = hi[0] & 0xff;
+            int from = first == 0 ? 0 : table.getInt(12 + (first - 1) * 4);
+            int to = table.getInt(12 + last * 4);
+            /* First position whose id is not below LO. */
+            while (from < to) {
+                int mid = (from + to) >>> 1;
+                if (compareAt(table, mid, lo) < 0) {
+                    from = mid + 1;
+                } else {
+                    to = mid;
+                }
+            }
+            int end = table.getInt(12 + last * 4);
+            for (int pos = from; pos < end && found.size() <= SHOW
+                    && compareAt(table, pos, hi) <= 0; pos++) {
+                byte[] id = new byte[ID_BYTES];
+                table.get(IDS_START + pos * ID_BYTES, id);
+                found.add(ObjectStore.toHex(id));
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read the commit-id table.");
+        }
+        if (LOG_FILE.isFile()) {
+            byte[] log = readContents(LOG_FILE);
+            for (int at = 0; at + ID_BYTES <= log.length; at += ID_BYTES) {
+                String id = ObjectStore.toHex(Arrays.copyOfRange(log, at, at + ID_BYTES));
+                if (id.startsWith(p)) {
+                    found.add(id);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static String pad(String p, char c) {
+        StringBuilder b = new StringBuilder(p);
+        while (b.length() < 40) {
+            b.append(c);
+        }
+        return b.toString();
+    }
+
+    private static int compareAt(MappedByteBuffer table, int pos, byte[] id) {
+        int base = IDS_START + pos * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = (table.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** The ids in the store starting with P, at most SHOW + 1 of them.
+     *  Also writes the table over every commit in the store and drops the
+     *  log, unless another process is writing: readers share the lock. */
+    private static TreeSet<String> rebuild(String p) {
+        List<String> ids = ObjectStore.commitIds();
+        TreeSet<String> found = new TreeSet<>();
+        for (String id : ids) {
+            if (id.startsWith(p) && found.size() <= SHOW) {
+                found.add(id);
+            }
+        }
+        if (RepositoryLock.writable()) {
+            write(ids);
+        }
+        return found;
+    }
+
+    /** Write the table over IDS, sorted, and drop the log. */
+    private static void write(List<String> ids) {
+        int[] fanout = new int[256];
+        for (String id : ids) {
+            fanout[Integer.parseInt(id.substring(0, 2), 16)]++;
+        }
+        File tmp = join(Repository.GITLET_DIR, "commit-ids.tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(ids.size());
+            int running = 0;
+            for (int n : fanout) {
+                running += n;
+                out.writeInt(running);
+            }
+            for (String id : ids) {
+                out.write(ObjectStore.toBytes(id));
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the commit-id table.");
+        }
+        try {
+            Files.move(tmp.toPath(), TABLE_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot install the commit-id table.");
+        }
+        LOG_FILE.delete();
+    }
+}
@@ -0,0 +1,71 @@
+package gitlet;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.Properties;
+
+import static gitlet.Utils.*;
+
+/** Per-repository settings kept as key=value lines in .gitlet/config. */
+class Config {
+
+    static final File CONFIG_FILE = join(Repository.GITLET_DIR, "config");
+
+    /** Loaded on first use. */
+    private static Properties props;
+
+    private static Properties props() {
+        if (props == null) {
+            props = new Properties();
+            if (CONFIG_FILE.isFile()) {
+                try (Reader in = new FileReader(CONFIG_FILE)) {
+                    props.load(in);
+                } catch (IOException excp) {
+                    throw new GitletException("Cannot read the config file.");
+                }
+            }
+        }
+        return props;
+    }
+
+    /** Forget the loaded settings so the file is read again. */
+    static void reload() {
+        props = null;
+    }
+
+    /** The value of KEY, or null. */
+    static String get(String key) {
+        return props().getProperty(key);
+    }
+
+    /** The integer value of KEY, or DFLT if it is unset. */
+    static int getInt(String key, int dflt) {
+        String v = get(key);
+        if (v == null) {
+            return dflt;
+        }
+        try {
+            return Integer.parseInt(v.trim());
+        } catch (NumberFormatException excp) {
+            throw new GitletException("Bad value for " + key + ": " + v);
+        }
+    }
+
+    /** Thread count under KEY, by default one per available core. */
+    static int threads(String key) {
+        return Math.max(1, getInt(key, Runtime.getRuntime().availableProcessors()));
+    }
+
+    static void set(String key, String value) {
+        props().setProperty(key, value);
+        try (Writer out = new FileWriter(CONFIG_FILE)) {
+            props().store(out, null);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the config file.");
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import static gitlet.Utils.*;
+
+/** Serves Gitlet commands for one repository over a Unix domain socket,
+ *  keeping the repository, index and object caches loaded between them.
+ *
+ *  The socket is .gitlet/daemon.sock. A request is argc(int) followed by
+ *  each argument (writeUTF). The reply is a series of frames, OUT
+ *  length(int) bytes for standard output, ended by EXIT status(int).
+ *  A request with a negative argc or one over MAX_ARGS is dropped
+ *  unanswered.
+ *  Requests are served one at a time. Before each one the daemon checks
+ *  the stat data of the repository's metadata files against what it left
+ *  behind after the last command, and reloads everything if another
+ *  process has changed them.
+ */
+class Daemon {
+
+    static final File SOCKET = join(Repository.GITLET_DIR, "daemon.sock");
+    private static final int OUT = 1;
+    private static final int EXIT = 2;
+    /** Most arguments a request may carry; longer ones are dropped. */
+    private static final int MAX_ARGS = 1024;
+
+    /** Loaded repository, or null when it must be read again. */
+    private Repository repo;
+    /** Stat data of the metadata files after the last command. */
+    private long[] stamp;
+
+    /** Run the daemon in this process until asked to stop. */
+    static void serve() {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            throw new GitletException("Not in an initialized Gitlet directory.");
+        }
+        if (SOCKET.exists()) {
+            if (forward(new String[] {"daemon", "ping"}) != null) {
+                System.out.println("A daemon is already running.");
+                return;
+            }
+            SOCKET.delete();
+        }
+        Daemon d = new Daemon();
+        PrintStream console = System.out;
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(SOCKET.toPath()));
+            SOCKET.deleteOnExit();
+            console.println("Serving " + Repository.CWD);
+            boolean running = true;
+            while (running) {
+                try (SocketChannel client = server.accept()) {
+                    running = d.handle(client);
+                } catch (IOException excp) {
+                    /* The client went away; keep serving. */
+                    System.setOut(console);
+                } catch (RuntimeException excp) {
+                    System.setOut(console);
+                    excp.printStackTrace(console);
+                }
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot listen on " + SOCKET);
+        } finally {
+            System.setOut(console);
+            SOCKET.delete();
+        }
+    }
+
+    /** Serve one request. Returns false once told to stop. */
+    private boolean handle(SocketChannel client) throws IOException {
+        DataInputStream in = new DataInputStream(Channels.newInputStream(client));
+        int argc = in.readInt();
+        if (argc < 0 || argc > MAX_ARGS) {
+            return true;
+        }
+        String[] args = new String[argc];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(client)));
+        if (args.length == 2 && args[0].equals("daemon")) {
+            boolean stop = args[1].equals("stop");
+            if (stop) {
+                writeFrame(out, "Daemon stopped.\n".getBytes());
+            }
+            out.writeByte(EXIT);
+            out.writeInt(0);
+            out.flush();
+            return !stop;
+        }
+
+        PrintStream console = System.out;
+        PrintStream captured = new PrintStream(new BufferedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                writeFrame(out, Arrays.copyOfRange(b, off, off + len));
+            }
+        }, 8192));
+        System.setOut(captured);
+        int status = 0;
+        try {
+            status = execute(args);
+        } finally {
+            captured.flush();
+            System.setOut(console);
+        }
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return true;
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] b) throws IOException {
+        out.writeByte(OUT);
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /** Run ARGS against the loaded repository under the repository lock,
+     *  reloading it first if something else touched the repository. */
+    private int execute(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Please enter a command.");
+            return 0;
+        }
+        int status = 0;
+        try (RepositoryLock lock = RepositoryLock.acquire(args[0])) {
+            if (repo == null || !Arrays.equals(stamp, stamp())) {
+                Config.reload();
+                ObjectStore.reload();
+                repo = null;
+            }
+            if (repo == null) {
+                repo = new Repository(args[0]);
+            }
+            Main.execute(repo, args);
+            if (lock == null || lock.canWrite()) {
+                repo.flush();
+            }
+            stamp = stamp();
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
+            repo = null;
+        } catch (RuntimeException excp) {
+            excp.printStackTrace(System.out);
+            repo = null;
+            status = 1;
+        }
+        return status;
+    }
+
+    /** Stat data of every file holding repository state other than the
+     *  content-addressed objects themselves. */
+    private static long[] stamp() {
+        File[] watched = {Repository.GITLET_DIR, Repository.WORK_DIR, Repository.BRANCH_DIR,
+            ObjectStore.PACK_DIR, Index.INDEX_FILE, Config.CONFIG_FILE,
+            join(Repository.WORK_DIR, "currentCommitSave"),
+            join(Repository.WORK_DIR, "activeBranch")};
+        File[] branches = Repository.BRANCH_DIR.listFiles();
+        if (branches == null) {
+            branches = new File[0];
+        }
+        Arrays.sort(branches);
+        long[] result = new long[(watched.length + branches.length) * 4];
+        int at = 0;
+        for (File f : watched) {
+            at = put(result, at, f);
+        }
+        for (File f : branches) {
+            at = put(result, at, f);
+        }
+        return result;
+    }
+
+    private static int put(long[] result, int at, File f) {
+        long[] st = Index.stat(f);
+        if (st != null) {
+            System.arraycopy(st, 0, result, at, 4);
+        }
+        return at + 4;
+    }
+
+    /** Send ARGS to the daemon for this directory and copy its output to
+     *  standard output. Returns the exit status, or null if no daemon is
+     *  listening. */
+    static Integer forward(String[] args) {
+        if (!SOCKET.exists()) {
+            return null;
+        }
+        SocketChannel ch;
+        try {
+            ch = SocketChannel.open(UnixDomainSocketAddress.of(SOCKET.toPath()));
+        } catch (IOException excp) {
+            return null;
+        }
+        try (ch) {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(ch)));
+            out.writeInt(args.length);
+            for (String a : args) {
+                out.writeUTF(a);
+            }
+            out.flush();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(ch));
+            while (true) {
+                int tag = in.readByte();
+                if (tag == EXIT) {
+                    return in.readInt();
+                }
+                byte[] b = new byte[in.readInt()];
+                in.readFully(b);
+                System.out.write(b, 0, b.length);
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Lost the connection to the daemon.");
+        }
+    }
+}
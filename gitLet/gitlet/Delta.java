@@ -0,0 +1,149 @@
+package gitlet;
+
+/** Binary deltas between two versions of a blob.
+ *
+ *  A delta is  baseLength(varint) resultLength(varint)  followed by
+ *  instructions:  0 length(varint) bytes  inserts literal bytes, and
+ *  1 offset(varint) length(varint)  copies a run of the base.
+ *
+ *  create() indexes the base at every BLOCK-byte boundary and slides a
+ *  rolling hash over the target, so it runs in time linear in the two
+ *  sizes.
+ */
+class Delta {
+
+    private static final int BLOCK = 16;
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+    /** Multiplier of the rolling hash, and its power for the byte leaving
+     *  the window. */
+    private static final int MULT = 31;
+    private static final int OUT_FACTOR = pow(MULT, BLOCK - 1);
+    /** Most base offsets tried per target position, so runs of identical
+     *  blocks cannot make the search quadratic. */
+    private static final int MAX_PROBES = 8;
+
+    private static int pow(int b, int e) {
+        int r = 1;
+        for (int i = 0; i < e; i++) {
+            r *= b;
+        }
+        return r;
+    }
+
+    private static int hash(byte[] data, int off) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++) {
+            h = h * MULT + (data[off + i] & 0xff);
+        }
+        return h;
+    }
+
+    /** The delta that turns BASE into TARGET. */
+    static byte[] create(byte[] base, byte[] target) {
+        CommitCodec.Out out = new CommitCodec.Out(64 + target.length / 8);
+        out.putVarint(base.length);
+        out.putVarint(target.length);
+
+        int blocks = base.length / BLOCK;
+        int mask = Integer.highestOneBit(Math.max(1, blocks) * 2) * 2 - 1;
+        /* Open-addressed table of block offsets + 1, keyed by hash. */
+        int[] table = new int[mask + 1];
+        for (int off = 0; off + BLOCK <= base.length; off += BLOCK) {
+            int slot = mix(hash(base, off)) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = off + 1;
+        }
+
+        int pending = 0;
+        int p = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (p + BLOCK <= target.length) {
+            int bestOff = -1;
+            int bestLen = 0;
+            int probes = 0;
+            for (int slot = mix(h) & mask; blocks > 0 && table[slot] != 0
+                    && probes < MAX_PROBES; slot = (slot + 1) & mask, probes++) {
+                int o = table[slot] - 1;
+                int len = 0;
+                while (o + len < base.length && p + len < target.length
+                        && base[o + len] == target[p + len]) {
+                    len++;
+                }
+                if (len >= BLOCK && len > bestLen) {
+                    bestOff = o;
+                    bestLen = len;
+                }
+            }
+            if (bestOff < 0) {
+                if (p + BLOCK < target.length) {
+                    h = (h - (target[p] & 0xff) * OUT_FACTOR) * MULT
+                            + (target[p + BLOCK] & 0xff);
+                }
+                p++;
+                continue;
+            }
+            /* Grow the match backwards into bytes not yet emitted. */
+            while (p > pending && bestOff > 0 && base[bestOff - 1] == target[p - 1]) {
+                p--;
+                bestOff--;
+                bestLen++;
+            }
+            insert(out, target, pending, p);
+            out.put(COPY);
+            out.putVarint(bestOff);
+            out.putVarint(bestLen);
+            p += bestLen;
+            pending = p;
+            if (p + BLOCK <= target.length) {
+                h = hash(target, p);
+            }
+        }
+        insert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    private static int mix(int h) {
+        return h ^ (h >>> 16);
+    }
+
+    private static void insert(CommitCodec.Out out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.put(INSERT);
+            out.putVarint(to - from);
+            out.put(target, from, to - from);
+        }
+    }
+
+    /** Rebuild the target from BASE and DELTA. */
+    static byte[] apply(byte[] base, byte[] delta) {
+        CommitCodec.In in = new CommitCodec.In(delta);
+        if (in.getVarint() != base.length) {
+            throw new GitletException("Delta does not match its base.");
+        }
+        byte[] result = new byte[(int) in.getVarint()];
+        int at = 0;
+        while (in.pos < delta.length) {
+            int op = in.get();
+            if (op == INSERT) {
+                int len = (int) in.getVarint();
+                System.arraycopy(delta, in.pos, result, at, len);
+                in.pos += len;
+                at += len;
+            } else if (op == COPY) {
+                int off = (int) in.getVarint();
+                int len = (int) in.getVarint();
+                System.arraycopy(base, off, result, at, len);
+                at += len;
+            } else {
+                throw new GitletException("Corrupt delta.");
+            }
+        }
+        if (at != result.length) {
+            throw new GitletException("Corrupt delta.");
+        }
+        return result;
+    }
+}
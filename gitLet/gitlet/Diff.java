@@ -0,0 +1,500 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Line diffs between two versions of a file, printed in unified format.
+ *
+ *  Each version is read once to hash its lines; lines are compared by
+ *  their 64-bit hashes and never held as strings. The edit script comes
+ *  from Myers' O(ND) algorithm in linear space, or from histogram diff,
+ *  which anchors on the rarest line the two sides share and falls back
+ *  to Myers where no line is rare enough. Past a cost limit Myers settles
+ *  for the furthest point it has reached rather than a minimal script.
+ *  Hunks are then printed by streaming both versions again, so memory
+ *  grows with the number of lines and edits, not with file size.
+ */
+class Diff {
+
+    /** Lines of context around each change. */
+    static final int CONTEXT = 3;
+    /** Occurrences above which a line is too common to anchor on. */
+    private static final int MAX_CHAIN = 64;
+    /** Histogram recursion beyond this depth is left to Myers. */
+    private static final int MAX_DEPTH = 64;
+    /** Bytes looked at for a NUL when deciding a file is binary. */
+    private static final int BINARY_PROBE = 8000;
+
+    /** One version of a file, which may be opened more than once. */
+    interface Source {
+        InputStream open() throws IOException;
+    }
+
+    /** An edit: lines [aStart, aEnd) of A become [bStart, bEnd) of B. */
+    static class Edit {
+        int aStart;
+        int aEnd;
+        int bStart;
+        int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    /** Line hashes of one version. */
+    static class Lines {
+        long[] hash = new long[64];
+        int size;
+        boolean binary;
+
+        private void add(long h) {
+            if (size == hash.length) {
+                hash = Arrays.copyOf(hash, size * 2);
+            }
+            hash[size++] = h;
+        }
+    }
+
+    private final long[] a;
+    private final long[] b;
+    private final List<Edit> edits = new ArrayList<>();
+    /** Furthest points on each diagonal, forward and backward, kept for
+     *  every middleSnake call; the first, widest box sizes them. */
+    private int[] vf;
+    private int[] vb;
+
+    private Diff(long[] a, long[] b) {
+        this.a = a;
+        this.b = b;
+    }
+
+    /** Hash the lines of SOURCE, or of nothing if it is null. A line
+     *  hash covers its terminator, so a missing final newline counts as
+     *  a change. */
+    static Lines hash(Source source) {
+        Lines lines = new Lines();
+        if (source == null) {
+            return lines;
+        }
+        byte[] buf = new byte[64 * 1024];
+        long h = seed();
+        boolean open = false;
+        long offset = 0;
+        try (InputStream in = source.open()) {
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                for (int i = 0; i < n; i++) {
+                    byte c = buf[i];
+                    if (c == 0 && offset + i < BINARY_PROBE) {
+                        lines.binary = true;
+                    }
+                    h = step(h, c);
+                    open = true;
+                    if (c == '\n') {
+                        lines.add(finish(h));
+                        h = seed();
+                        open = false;
+                    }
+                }
+                offset += n;
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read a file to diff.");
+        }
+        if (open) {
+            lines.add(finish(h));
+        }
+        return lines;
+    }
+
+    private static long seed() {
+        return 0xcbf29ce484222325L;
+    }
+
+    private static long step(long h, byte c) {
+        return (h ^ (c & 0xff)) * 0x100000001b3L;
+    }
+
+    /** Mix the FNV state so that similar lines spread across the table. */
+    private static long finish(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    /** The edits turning the A lines into the B lines, in order. */
+    static List<Edit> edits(Lines a, Lines b, boolean histogram) {
+        Diff d = new Diff(a.hash, b.hash);
+        if (histogram) {
+            d.histogram(0, a.size, 0, b.size, 0);
+        } else {
+            d.myers(0, a.size, 0, b.size);
+        }
+        return d.edits;
+    }
+
+    /** Record that [a0, a1) became [b0, b1), joining it to the last edit
+     *  if they touch. */
+    private void add(int a0, int a1, int b0, int b1) {
+        if (a0 == a1 && b0 == b1) {
+            return;
+        }
+        if (!edits.isEmpty()) {
+            Edit last = edits.get(edits.size() - 1);
+            if (last.aEnd == a0 && last.bEnd == b0) {
+                last.aEnd = a1;
+                last.bEnd = b1;
+                return;
+            }
+        }
+        edits.add(new Edit(a0, a1, b0, b1));
+    }
+
+    /** Myers over the box [a0, a1) x [b0, b1), split at a middle snake. */
+    private void myers(int a0, int a1, int b0, int b1) {
+        while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+            a0++;
+            b0++;
+        }
+        while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+            a1--;
+            b1--;
+        }
+        if (a0 == a1 || b0 == b1) {
+            add(a0, a1, b0, b1);
+            return;
+        }
+        int[] snake = middleSnake(a0, a1, b0, b1);
+        myers(a0, snake[0], b0, snake[1]);
+        myers(snake[0], snake[2], snake[1], snake[3]);
+        myers(snake[2], a1, snake[3], b1);
+    }
+
+    /** {x1, y1, x2, y2}: a path segment through the box that some
+     *  shortest edit script passes along. Searches forward from the top
+     *  left and backward from the bottom right until they overlap. */
+    private int[] middleSnake(int a0, int a1, int b0, int b1) {
+        int n = a1 - a0;
+        int m = b1 - b0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int limit = Math.max(256, (int) Math.sqrt(n + m));
+        /* Rounds past LIMIT are never run, so no diagonal beyond it is. */
+        int max = Math.min((n + m + 1) / 2, limit);
+        int off = max + 1;
+        if (vf == null || vf.length < 2 * max + 3) {
+            vf = new int[2 * max + 3];
+            vb = new int[2 * max + 3];
+        }
+        vf[off + 1] = a0;
+        vb[off + 1] = b1;
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int px;
+                int x;
+                if (k == -d || (k != d && vf[off + k - 1] < vf[off + k + 1])) {
+                    px = vf[off + k + 1];
+                    x = px;
+                } else {
+                    px = vf[off + k - 1];
+                    x = px + 1;
+                }
+                int y = b0 + (x - a0) - k;
+                int py = (d == 0 || x != px) ? y : y - 1;
+                while (x < a1 && y < b1 && a[x] == b[y]) {
+                    x++;
+                    y++;
+                }
+                vf[off + k] = x;
+                int c = k - delta;
+                if (odd && c >= -(d - 1) && c <= d - 1 && y >= vb[off + c]) {
+                    return new int[] {px, py, x, y};
+                }
+            }
+            for (int c = -d; c <= d; c += 2) {
+                int py;
+                int y;
+                if (c == -d || (c != d && vb[off + c - 1] > vb[off + c + 1])) {
+                    py = vb[off + c + 1];
+                    y = py;
+                } else {
+                    py = vb[off + c - 1];
+                    y = py - 1;
+                }
+                int k = c + delta;
+                int x = a0 + (y - b0) + k;
+                int px = (d == 0 || y != py) ? x : x + 1;
+                while (x > a0 && y > b0 && a[x - 1] == b[y - 1]) {
+                    x--;
+                    y--;
+                }
+                vb[off + c] = y;
+                if (!odd && k >= -d && k <= d && x <= vf[off + k]) {
+                    return new int[] {x, y, px, py};
+                }
+            }
+            if (d >= limit) {
+                return furthest(vf, off, d, a0, a1, b0, b1);
+            }
+        }
+        throw new IllegalStateException("no middle snake");
+    }
+
+    /** The point on a forward diagonal after D steps that has got
+     *  furthest into the box, as an empty snake. */
+    private static int[] furthest(int[] vf, int off, int d, int a0, int a1,
+                                  int b0, int b1) {
+        int bestX = a0;
+        int bestY = b0;
+        for (int k = -d; k <= d; k += 2) {
+            int x = vf[off + k];
+            int y = b0 + (x - a0) - k;
+            if (x <= a1 && y >= b0 && y <= b1 && x + y > bestX + bestY) {
+                bestX = x;
+                bestY = y;
+            }
+        }
+        return new int[] {bestX, bestY, bestX, bestY};
+    }
+
+    /** Histogram diff over [a0, a1) x [b0, b1): match the rarest line
+     *  both sides share, extend the match, and recurse on either side. */
+    private void histogram(int a0, int a1, int b0, int b1, int depth) {
+        while (a0 < a1 && b0 < b1 && a[a0] == b[b0]) {
+            a0++;
+            b0++;
+        }
+        while (a0 < a1 && b0 < b1 && a[a1 - 1] == b[b1 - 1]) {
+            a1--;
+            b1--;
+        }
+        if (a0 == a1 || b0 == b1) {
+            add(a0, a1, b0, b1);
+            return;
+        }
+        if (depth > MAX_DEPTH) {
+            myers(a0, a1, b0, b1);
+            return;
+        }
+        Counts counts = new Counts(a1 - a0);
+        for (int i = a0; i < a1; i++) {
+            counts.add(a[i], i);
+        }
+        int bestA = -1;
+        int bestB = -1;
+        int bestCount = MAX_CHAIN + 1;
+        for (int j = b0; j < b1 && bestCount > 1; j++) {
+            int slot = counts.find(b[j]);
+            if (slot >= 0 && counts.count[slot] < bestCount) {
+                bestCount = counts.count[slot];
+                bestA = counts.first[slot];
+                bestB = j;
+            }
+        }
+        if (bestA < 0) {
+            myers(a0, a1, b0, b1);
+            return;
+        }
+        int as = bestA;
+        int bs = bestB;
+        while (as > a0 && bs > b0 && a[as - 1] == b[bs - 1]) {
+            as--;
+            bs--;
+        }
+        int ae = bestA;
+        int be = bestB;
+        while (ae < a1 && be < b1 && a[ae] == b[be]) {
+            ae++;
+            be++;
+        }
+        histogram(a0, as, b0, bs, depth + 1);
+        histogram(ae, a1, be, b1, depth + 1);
+    }
+
+    /** Open-addressing count of line hashes, with each one's first line. */
+    private static class Counts {
+        private final long[] keys;
+        private final boolean[] used;
+        final int[] count;
+        final int[] first;
+        private final int mask;
+
+        Counts(int expected) {
+            int cap = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+            keys = new long[cap];
+            used = new boolean[cap];
+            count = new int[cap];
+            first = new int[cap];
+            mask = cap - 1;
+        }
+
+        void add(long key, int line) {
+            int i = (int) key & mask;
+            while (used[i] && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (!used[i]) {
+                used[i] = true;
+                keys[i] = key;
+                first[i] = line;
+            }
+            count[i]++;
+        }
+
+        /** The slot holding KEY, or -1. */
+        int find(long key) {
+            int i = (int) key & mask;
+            while (used[i]) {
+                if (keys[i] == key) {
+                    return i;
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+    }
+
+    /** Print the changes from A to B, versions of PATH where null means
+     *  the file is absent, to OUT as a unified diff. Prints nothing if
+     *  the two have the same lines. */
+    static void unified(String path, Source a, Source b, boolean histogram, PrintStream out) {
+        Lines la = hash(a);
+        Lines lb = hash(b);
+        String from = a == null ? "/dev/null" : "a/" + path;
+        String to = b == null ? "/dev/null" : "b/" + path;
+        if (la.binary || lb.binary) {
+            out.println("diff --git a/" + path + " b/" + path);
+            out.println("Binary files " + from + " and " + to + " differ");
+            return;
+        }
+        List<Edit> script = edits(la, lb, histogram);
+        if (script.isEmpty() && (a == null) == (b == null)) {
+            return;
+        }
+        out.println("diff --git a/" + path + " b/" + path);
+        if (a == null) {
+            out.println("new file");
+        } else if (b == null) {
+            out.println("deleted file");
+        }
+        out.println("--- " + from);
+        out.println("+++ " + to);
+        try (LineReader ra = new LineReader(a); LineReader rb = new LineReader(b)) {
+            int i = 0;
+            while (i < script.size()) {
+                int j = i;
+                while (j + 1 < script.size()
+                        && script.get(j + 1).aStart - script.get(j).aEnd <= 2 * CONTEXT) {
+                    j++;
+                }
+                printHunk(script.subList(i, j + 1), la.size, ra, rb, out);
+                i = j + 1;
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read " + path);
+        }
+    }
+
+    /** Print one hunk made of HUNK, edits close enough to share context. */
+    private static void printHunk(List<Edit> hunk, int aSize, LineReader ra, LineReader rb,
+                                  PrintStream out) throws IOException {
+        Edit first = hunk.get(0);
+        Edit last = hunk.get(hunk.size() - 1);
+        int lead = Math.min(CONTEXT, first.aStart);
+        int aFrom = first.aStart - lead;
+        int bFrom = first.bStart - lead;
+        int trail = Math.min(CONTEXT, aSize - last.aEnd);
+        int aTo = last.aEnd + trail;
+        int bTo = last.bEnd + trail;
+        out.println("@@ -" + range(aFrom, aTo - aFrom) + " +" + range(bFrom, bTo - bFrom) + " @@");
+        ra.skipTo(aFrom);
+        rb.skipTo(bFrom);
+        for (Edit e : hunk) {
+            while (ra.line < e.aStart) {
+                printLine(' ', ra.next(), out);
+                rb.next();
+            }
+            while (ra.line < e.aEnd) {
+                printLine('-', ra.next(), out);
+            }
+            while (rb.line < e.bEnd) {
+                printLine('+', rb.next(), out);
+            }
+        }
+        while (ra.line < aTo) {
+            printLine(' ', ra.next(), out);
+            rb.next();
+        }
+    }
+
+    private static String range(int start, int count) {
+        int first = count == 0 ? start : start + 1;
+        return count == 1 ? Integer.toString(first) : first + "," + count;
+    }
+
+    private static void printLine(char tag, byte[] line, PrintStream out) {
+        out.print(tag);
+        out.write(line, 0, line.length);
+        if (line.length == 0 || line[line.length - 1] != '\n') {
+            out.println();
+            out.println("\\ No newline at end of file");
+        }
+    }
+
+    /** Reads the lines of a Source in order, as bytes with terminators. */
+    static class LineReader implements AutoCloseable {
+        private final InputStream in;
+        /** Number of the next line. */
+        int line;
+
+        LineReader(Source source) throws IOException {
+            in = source == null ? InputStream.nullInputStream()
+                    : new BufferedInputStream(source.open(), 64 * 1024);
+        }
+
+        byte[] next() throws IOException {
+            line++;
+            byte[] buf = new byte[128];
+            int n = 0;
+            int c;
+            while ((c = in.read()) >= 0) {
+                if (n == buf.length) {
+                    buf = Arrays.copyOf(buf, n * 2);
+                }
+                buf[n++] = (byte) c;
+                if (c == '\n') {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buf, n);
+        }
+
+        void skipTo(int target) throws IOException {
+            int c;
+            while (line < target && (c = in.read()) >= 0) {
+                if (c == '\n') {
+                    line++;
+                }
+            }
+            if (line < target) {
+                line = target;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/** The first-parent history of a commit, newest first, read one commit
+ *  at a time.
+ *
+ *  Only the id of the next commit is held, so the first commit is ready
+ *  without touching its ancestors and memory does not grow with depth.
+ *  skip() steps over commits through the commit-graph file where it
+ *  covers them, opening commits only past its end.
+ */
+class History implements Iterator<Commit> {
+
+    private final CommitGraph graph = CommitGraph.open();
+    /** Id of the commit next() returns, or null at the root. */
+    private String next;
+
+    History(String head) {
+        this.next = head;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Commit next() {
+        if (next == null) {
+            throw new NoSuchElementException();
+        }
+        Commit c = ObjectStore.readCommit(next);
+        next = c.getParent();
+        return c;
+    }
+
+    /** Pass over the next N commits without returning them. */
+    void skip(long n) {
+        for (; n > 0 && next != null; n--) {
+            int pos = graph.find(next);
+            if (pos >= 0) {
+                int parent = graph.parent(pos);
+                next = parent < 0 ? null : graph.id(parent);
+            } else {
+                next = ObjectStore.readCommit(next).getParent();
+            }
+        }
+    }
+}
@@ -0,0 +1,339 @@
+package gitlet;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static gitlet.Utils.*;
+
+/** The staging area and a stat cache of the working tree in one file.
+ *
+ *  .gitlet/index:  "GDIR" version count, then per path in sorted order
+ *  path(UTF) stage(byte) blobId(20) size mtime ctime inode (longs).
+ *
+ *  Every path tracked by the head commit or staged has an entry. TRACKED
+ *  entries carry the head's blob id, ADDED the staged blob id, REMOVED
+ *  the head's id of a file staged for removal. The stat fields describe
+ *  the working file when it was last known to hold that blob, so a file
+ *  whose stat is unchanged need not be read again. An entry whose mtime
+ *  is not older than the index file itself is "racily clean" and is
+ *  always rechecked.
+ */
+class Index {
+
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "index");
+    static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'D', 'I', 'R'};
+
+    static final byte TRACKED = 0;
+    static final byte ADDED = 1;
+    static final byte REMOVED = 2;
+
+    /** One path. Stat fields are zero when unknown. */
+    static class Entry {
+        byte stage;
+        String id;
+        long size;
+        long mtime;
+        long ctime;
+        long inode;
+
+        Entry(byte stage, String id) {
+            this.stage = stage;
+            this.id = id;
+        }
+    }
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+    /** Live views of the ADDED and REMOVED entries. */
+    private final HashMap<String, String> added = new HashMap<>();
+    private final HashSet<String> removed = new HashSet<>();
+    /** Modification time of the index file when loaded, in nanoseconds. */
+    private long loadedAt;
+    /** Stat data of the index file when loaded or last saved. */
+    private long[] loadedStat;
+    private boolean dirty;
+
+    /** Read the index, or build it from the files HEADFILES gives (and any
+     *  staging area left by older versions) if there is none yet. */
+    static Index load(Supplier<Map<String, String>> headFiles) {
+        Index index = new Index();
+        if (!INDEX_FILE.isFile()) {
+            index.migrate(headFiles.get());
+            index.absorbStageDir();
+            return index;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(INDEX_FILE)))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION) {
+                throw new GitletException("Unsupported index format.");
+            }
+            int count = in.readInt();
+            byte[] raw = new byte[20];
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                Entry e = new Entry(in.readByte(), null);
+                in.readFully(raw);
+                e.id = ObjectStore.toHex(raw);
+                e.size = in.readLong();
+                e.mtime = in.readLong();
+                e.ctime = in.readLong();
+                e.inode = in.readLong();
+                index.put(path, e);
+            }
+            index.loadedAt = Files.getLastModifiedTime(INDEX_FILE.toPath())
+                    .to(TimeUnit.NANOSECONDS);
+            index.loadedStat = stat(INDEX_FILE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read the index.");
+        }
+        index.dirty = false;
+        index.absorbStageDir();
+        return index;
+    }
+
+    /** Build entries from HEADFILES plus the REMOVE directory that held
+     *  removals before this file existed. */
+    private void migrate(Map<String, String> headFiles) {
+        for (Map.Entry<String, String> f : headFiles.entrySet()) {
+            put(f.getKey(), new Entry(TRACKED, f.getValue()));
+        }
+        File removeDir = join(Repository.GITLET_DIR, "REMOVE");
+        if (removeDir.isDirectory()) {
+            for (String name : plainFilenamesIn(removeDir)) {
+                if (headFiles.containsKey(name)) {
+                    put(name, new Entry(REMOVED, headFiles.get(name)));
+                }
+            }
+        }
+        dirty = true;
+    }
+
+    /** Move copies left in the old STAGE directory into the blob store
+     *  and stage them by id. */
+    private void absorbStageDir() {
+        File stageDir = Repository.STAGE_DIR;
+        if (!stageDir.isDirectory()) {
+            return;
+        }
+        for (String name : plainFilenamesIn(stageDir)) {
+            File copy = join(stageDir, name);
+            put(name, new Entry(ADDED, Blob.store(copy)));
+            copy.delete();
+        }
+        stageDir.delete();
+    }
+
+    private void put(String path, Entry e) {
+        Entry old = entries.put(path, e);
+        if (old != null) {
+            added.remove(path);
+            removed.remove(path);
+        }
+        if (e.stage == ADDED) {
+            added.put(path, e.id);
+        } else if (e.stage == REMOVED) {
+            removed.add(path);
+        }
+        dirty = true;
+    }
+
+    private void drop(String path) {
+        if (entries.remove(path) != null) {
+            added.remove(path);
+            removed.remove(path);
+            dirty = true;
+        }
+    }
+
+    /** Files staged for addition: path to blob id. Do not modify. */
+    HashMap<String, String> added() {
+        return added;
+    }
+
+    /** Files staged for removal. Do not modify. */
+    HashSet<String> removed() {
+        return removed;
+    }
+
+    /** Stage FILE, whose contents hash to ID, as PATH. */
+    void stageAdd(String path, String id, File file) {
+        Entry e = new Entry(ADDED, id);
+        setStat(e, file);
+        put(path, e);
+    }
+
+    /** Stage PATH, tracked at HEADID, for removal. */
+    void stageRemove(String path, String headId) {
+        put(path, new Entry(REMOVED, headId));
+    }
+
+    /** Undo any staging of PATH: back to tracked at HEADID, or forgotten
+     *  if HEADID is null. */
+    void unstage(String path, String headId) {
+        if (headId == null) {
+            drop(path);
+            return;
+        }
+        Entry old = entries.get(path);
+        if (old != null && old.stage == TRACKED) {
+            return;
+        }
+        put(path, new Entry(TRACKED, headId));
+    }
+
+    /** Make the index match a commit with FILES and nothing staged. Stat
+     *  data survives for paths whose blob did not change. */
+    void reset(Map<String, String> files) {
+        TreeMap<String, Entry> old = new TreeMap<>(entries);
+        entries.clear();
+        added.clear();
+        removed.clear();
+        for (Map.Entry<String, String> f : files.entrySet()) {
+            Entry e = new Entry(TRACKED, f.getValue());
+            Entry prev = old.get(f.getKey());
+            if (prev != null && prev.id.equals(e.id) && prev.stage != REMOVED) {
+                e.size = prev.size;
+                e.mtime = prev.mtime;
+                e.ctime = prev.ctime;
+                e.inode = prev.inode;
+            }
+            entries.put(f.getKey(), e);
+        }
+        dirty = true;
+    }
+
+    /** True if PATH is tracked and FILE's stat proves it still holds the
+     *  tracked blob, without reading it. */
+    boolean isClean(String path, File file) {
+        Entry e = entries.get(path);
+        if (e == null || e.stage != TRACKED || e.mtime == 0) {
+            return false;
+        }
+        long[] st = stat(file);
+        return st != null && st[0] == e.size && st[1] == e.mtime
+                && st[2] == e.ctime && st[3] == e.inode && e.mtime < loadedAt;
+    }
+
+    /** Record that FILE currently holds the blob PATH is tracked at. */
+    void refresh(String path, File file) {
+        Entry e = entries.get(path);
+        if (e != null && e.stage == TRACKED) {
+            setStat(e, file);
+            dirty = true;
+        }
+    }
+
+    private static void setStat(Entry e, File file) {
+        long[] st = stat(file);
+        if (st != null) {
+            e.size = st[0];
+            e.mtime = st[1];
+            e.ctime = st[2];
+            e.inode = st[3];
+        }
+    }
+
+    /** {size, mtime, ctime, inode} of FILE with times in nanoseconds, or
+     *  null if it does not exist. ctime and inode are zero where the
+     *  platform does not expose them. */
+    static long[] stat(File file) {
+        try {
+            Map<String, Object> a = Files.readAttributes(file.toPath(),
+                    "unix:size,lastModifiedTime,ctime,ino", LinkOption.NOFOLLOW_LINKS);
+            return new long[] {(Long) a.get("size"),
+                ((FileTime) a.get("lastModifiedTime")).to(TimeUnit.NANOSECONDS),
+                ((FileTime) a.get("ctime")).to(TimeUnit.NANOSECONDS),
+                (Long) a.get("ino")};
+        } catch (UnsupportedOperationException | IllegalArgumentException excp) {
+            try {
+                BasicFileAttributes a = Files.readAttributes(file.toPath(),
+                        BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                return new long[] {a.size(), a.lastModifiedTime().to(TimeUnit.NANOSECONDS),
+                    a.creationTime().to(TimeUnit.NANOSECONDS), 0};
+            } catch (IOException e) {
+                return null;
+            }
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /** The index in its file format. */
+    byte[] encode() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + entries.size() * 96);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> me : entries.entrySet()) {
+                Entry e = me.getValue();
+                out.writeUTF(me.getKey());
+                out.writeByte(e.stage);
+                out.write(ObjectStore.toBytes(e.id));
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeLong(e.ctime);
+                out.writeLong(e.inode);
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the index.");
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Write the index if anything changed since it was loaded, unless
+     *  another process has replaced the file since then. */
+    void save() {
+        if (!dirty || !Arrays.equals(loadedStat, stat(INDEX_FILE))) {
+            return;
+        }
+        Journal.settle();
+        File tmp;
+        try {
+            tmp = File.createTempFile("index", ".tmp", Repository.GITLET_DIR);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the index.");
+        }
+        writeContents(tmp, (Object) encode());
+        try {
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot install the index.");
+        }
+        saved();
+    }
+
+    /** Note that the file now holds this index, as after the journal
+     *  installed its encoding. */
+    void saved() {
+        try {
+            loadedAt = Files.getLastModifiedTime(INDEX_FILE.toPath())
+                    .to(TimeUnit.NANOSECONDS);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot install the index.");
+        }
+        loadedStat = stat(INDEX_FILE);
+        dirty = false;
+    }
+}
@@ -0,0 +1,385 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+import static gitlet.Utils.*;
+
+/** Write-ahead journal that makes every change to the repository's refs
+ *  atomic, and durable at the cost of one batch of fsyncs.
+ *
+ *  .gitlet/journal:  "GJNL" version, then records, each length(int)
+ *  crc(int) applied(byte) payload, where crc is the CRC32 of the
+ *  payload. A payload is count(varint) and then count operations,
+ *  kind(byte) path(string relative to .gitlet) and, for a WRITE, the new
+ *  contents as length(varint) and bytes.
+ *
+ *  A transaction collects its writes. On commit, the objects it wrote
+ *  or depends on are forced to disk together, its record is appended
+ *  and the journal forced once, and only then are the writes applied,
+ *  each by an atomic rename, and the record flagged applied. The flag
+ *  is not forced. A write made with update is refused if the file no
+ *  longer holds what the caller last read, so a ref is never moved from
+ *  under a writer that did not hold the repository lock.
+ *
+ *  Every write to the head, the current branch name and the branch heads
+ *  goes through here, and so does the index whenever it changes with
+ *  them, so replaying the records in order always leaves each path as
+ *  its last record says. On startup a torn record at the end, which was
+ *  never applied, is cut off, and every record from the first one not
+ *  flagged applied is replayed. Once the journal passes MAX_BYTES the
+ *  files it names are forced and it is emptied. Because the flag is not
+ *  forced, the same is done before the index is saved outside the
+ *  journal (settle), so an old record cannot be replayed over it.
+ *
+ *  With fsync on, a commit costs one fsync per new object and per
+ *  directory holding them, all issued at once, then one for the
+ *  journal. The first index save after it costs one per file the journal
+ *  names and per directory holding them, and one more for the journal.
+ */
+class Journal {
+
+    static final File JOURNAL_FILE = join(Repository.GITLET_DIR, "journal");
+    /** Config key; "false" skips every fsync, trading durability for
+     *  speed on throwaway repositories. */
+    static final String FSYNC_KEY = "core.fsync";
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'J', 'N', 'L'};
+    private static final int HEADER_SIZE = MAGIC.length + 4;
+    private static final int RECORD_HEAD = 9;
+    private static final long MAX_BYTES = 4L << 20;
+
+    private static final byte WRITE = 0;
+    private static final byte DELETE = 1;
+
+    /** The transaction in progress, which collects objects written while
+     *  it is open. */
+    private static Journal open;
+
+    /** Paths relative to .gitlet, with new contents or null to delete. */
+    private final List<String> paths = new ArrayList<>();
+    private final List<byte[]> contents = new ArrayList<>();
+    /** Files that must still hold the contents given, or not exist. */
+    private final List<File> checked = new ArrayList<>();
+    private final List<String> expected = new ArrayList<>();
+    /** Files that must be on disk before the record is. */
+    private final Set<File> durable = new LinkedHashSet<>();
+
+    /** Start a transaction. Objects stored until it commits are forced
+     *  along with it. */
+    static Journal begin() {
+        open = new Journal();
+        return open;
+    }
+
+    /** Note that object FILE was just written, so the open transaction,
+     *  if any, forces it before its record. */
+    static void wrote(File file) {
+        if (open != null) {
+            open.durable.add(file);
+        }
+    }
+
+    /** Replace FILE with DATA when the transaction commits. */
+    void write(File file, byte[] data) {
+        paths.add(relative(file));
+        contents.add(data);
+    }
+
+    void write(File file, String data) {
+        write(file, data.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** Replace FILE with DATA when the transaction commits, provided it
+     *  still holds EXPECTED then, or does not exist if that is null. */
+    void update(File file, String expected, String data) {
+        checked.add(file);
+        this.expected.add(expected);
+        write(file, data);
+    }
+
+    /** Delete FILE when the transaction commits. */
+    void delete(File file) {
+        paths.add(relative(file));
+        contents.add(null);
+    }
+
+    /** Force FILE, which the new state refers to, before the record. */
+    void needs(File file) {
+        if (file.isFile()) {
+            durable.add(file);
+        }
+    }
+
+    private static String relative(File file) {
+        return Repository.GITLET_DIR.toPath().relativize(file.toPath()).toString()
+                .replace(File.separatorChar, '/');
+    }
+
+    private static boolean fsync() {
+        return !"false".equals(Config.get(FSYNC_KEY));
+    }
+
+    /** Make the transaction durable, then apply it. */
+    void commit() {
+        if (open == this) {
+            open = null;
+        }
+        for (int i = 0; i < checked.size(); i++) {
+            File f = checked.get(i);
+            String now = f.isFile() ? readContentsAsString(f) : null;
+            if (!Objects.equals(now, expected.get(i))) {
+                throw new GitletException(relative(f) + " was changed by another process.");
+            }
+        }
+        boolean sync = fsync();
+        if (sync) {
+            forceAll(durable);
+        }
+        byte[] payload = encode();
+        boolean created = !JOURNAL_FILE.exists();
+        try (FileChannel ch = FileChannel.open(JOURNAL_FILE.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() < HEADER_SIZE) {
+                ch.truncate(0);
+                Blob.writeFully(ch, ByteBuffer.allocate(HEADER_SIZE).put(MAGIC)
+                        .putInt(VERSION).flip());
+            } else if (ch.size() > MAX_BYTES) {
+                checkpoint(ch, sync);
+            }
+            long at = ch.size();
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer head = ByteBuffer.allocate(RECORD_HEAD);
+            head.putInt(payload.length).putInt((int) crc.getValue()).put((byte) 0).flip();
+            ch.position(at);
+            Blob.writeFully(ch, head);
+            Blob.writeFully(ch, ByteBuffer.wrap(payload));
+            if (sync) {
+                ch.force(false);
+                if (created) {
+                    forceDir(Repository.GITLET_DIR);
+                }
+            }
+            apply(paths, contents);
+            ch.write(ByteBuffer.wrap(new byte[] {1}), at + 8);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the journal.");
+        }
+    }
+
+    private byte[] encode() {
+        CommitCodec.Out out = new CommitCodec.Out(64);
+        out.putVarint(paths.size());
+        for (int i = 0; i < paths.size(); i++) {
+            byte[] data = contents.get(i);
+            out.put(data == null ? DELETE : WRITE);
+            out.putString(paths.get(i));
+            if (data != null) {
+                out.putVarint(data.length);
+                out.put(data, 0, data.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Carry out PATHS, replacing each with its CONTENTS or deleting it. */
+    private static void apply(List<String> paths, List<byte[]> contents) {
+        for (int i = 0; i < paths.size(); i++) {
+            File dest = join(Repository.GITLET_DIR, paths.get(i));
+            byte[] data = contents.get(i);
+            if (data == null) {
+                dest.delete();
+                continue;
+            }
+            /* Not beside DEST, where readers listing branches would see it. */
+            File tmp = join(Repository.GITLET_DIR, "journal.tmp");
+            writeContents(tmp, (Object) data);
+            try {
+                Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException excp) {
+                tmp.delete();
+                throw new GitletException("Cannot write " + paths.get(i));
+            }
+        }
+    }
+
+    /** Force every file the records in CH name, then empty it. */
+    private static void checkpoint(FileChannel ch, boolean sync) throws IOException {
+        if (sync) {
+            TreeSet<File> named = new TreeSet<>();
+            for (long at = HEADER_SIZE; at + RECORD_HEAD <= ch.size(); ) {
+                ByteBuffer head = readAt(ch, at, RECORD_HEAD);
+                List<String> paths = new ArrayList<>();
+                decode(readAt(ch, at + RECORD_HEAD, head.getInt(0)).array(), paths, null);
+                for (String p : paths) {
+                    File f = join(Repository.GITLET_DIR, p);
+                    if (f.isFile()) {
+                        named.add(f);
+                    }
+                }
+                at += RECORD_HEAD + head.getInt(0);
+            }
+            forceAll(named);
+        }
+        ch.truncate(HEADER_SIZE);
+        if (sync) {
+            ch.force(false);
+        }
+    }
+
+    /** Force the files the journal names and empty it, so that no record
+     *  can be replayed over a write about to be made outside it. Free if
+     *  it is already empty. */
+    static void settle() {
+        if (JOURNAL_FILE.length() <= HEADER_SIZE) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(JOURNAL_FILE.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            checkpoint(ch, fsync());
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the journal.");
+        }
+    }
+
+    /** Finish whatever a crashed process left in the journal. */
+    static void recover() {
+        if (!JOURNAL_FILE.isFile()) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(JOURNAL_FILE.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = ch.size();
+            long at = HEADER_SIZE;
+            long replayFrom = -1;
+            while (at < size) {
+                if (at + RECORD_HEAD > size) {
+                    break;
+                }
+                ByteBuffer head = readAt(ch, at, RECORD_HEAD);
+                long end = at + RECORD_HEAD + head.getInt(0);
+                if (head.getInt(0) < 0 || end > size) {
+                    break;
+                }
+                if (replayFrom < 0 && head.get(8) == 0) {
+                    replayFrom = at;
+                }
+                if (end == size || replayFrom >= 0) {
+                    CRC32 crc = new CRC32();
+                    crc.update(readAt(ch, at + RECORD_HEAD, head.getInt(0)));
+                    if ((int) crc.getValue() != head.getInt(4)) {
+                        break;
+                    }
+                }
+                at = end;
+            }
+            if (at < size) {
+                /* A torn record was never applied: roll it back. */
+                ch.truncate(at);
+                if (fsync()) {
+                    ch.force(false);
+                }
+            }
+            if (replayFrom < 0 || replayFrom >= at) {
+                return;
+            }
+            for (long r = replayFrom; r < at; ) {
+                int length = readAt(ch, r, RECORD_HEAD).getInt(0);
+                List<String> paths = new ArrayList<>();
+                List<byte[]> contents = new ArrayList<>();
+                decode(readAt(ch, r + RECORD_HEAD, length).array(), paths, contents);
+                apply(paths, contents);
+                ch.write(ByteBuffer.wrap(new byte[] {1}), r + 8);
+                r += RECORD_HEAD + length;
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot recover from the journal.");
+        }
+    }
+
+    /** Read the operations in PAYLOAD into PATHS and, if not null, CONTENTS. */
+    private static void decode(byte[] payload, List<String> paths, List<byte[]> contents) {
+        CommitCodec.In in = new CommitCodec.In(payload);
+        long count = in.getVarint();
+        for (long i = 0; i < count; i++) {
+            int kind = in.get();
+            paths.add(in.getString());
+            byte[] data = null;
+            if (kind == WRITE) {
+                int len = (int) in.getVarint();
+                data = new byte[len];
+                System.arraycopy(payload, in.pos, data, 0, len);
+                in.pos += len;
+            }
+            if (contents != null) {
+                contents.add(data);
+            }
+        }
+    }
+
+    private static ByteBuffer readAt(FileChannel ch, long at, int n) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(n);
+        while (buf.hasRemaining() && ch.read(buf, at + buf.position()) >= 0) {
+            continue;
+        }
+        return buf.flip();
+    }
+
+    /** Force FILES and then their directories, all at once. */
+    /** Force FILES and the directories holding them, unless fsync is off. */
+    static void sync(File... files) {
+        if (fsync()) {
+            forceAll(new LinkedHashSet<>(Arrays.asList(files)));
+        }
+    }
+
+    private static void forceAll(Set<File> files) {
+        Set<File> dirs = new LinkedHashSet<>();
+        for (File f : files) {
+            dirs.add(f.getParentFile());
+        }
+        try {
+            files.parallelStream().forEach(Journal::force);
+        } catch (UncheckedIOException excp) {
+            throw new GitletException("Cannot sync " + excp.getMessage());
+        }
+        for (File d : dirs) {
+            forceDir(d);
+        }
+    }
+
+    private static void force(File f) {
+        try (FileChannel ch = FileChannel.open(f.toPath(), StandardOpenOption.READ)) {
+            ch.force(false);
+        } catch (IOException excp) {
+            throw new UncheckedIOException(f.getName(), excp);
+        }
+    }
+
+    /** Force the entries of directory DIR, where the platform allows it. */
+    private static void forceDir(File dir) {
+        try (FileChannel ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            ch.force(true);
+        } catch (IOException excp) {
+            /* Directories cannot be opened on some platforms. */
+            return;
+        }
+    }
+}
@@ -1,5 +1,8 @@
 package gitlet;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /** Driver class for Gitlet, a subset of the Git version-control system.
  *  @author Ziming Huang
  */
@@ -10,11 +13,44 @@ public class Main {
 
     public static void main(String[] args) {
 //        String[] args = new String[]{"status"};
+        if (args.length == 1 && args[0].equals("daemon")) {
+            Daemon.serve();
+            return;
+        }
+        /** Hand the command to a running daemon if there is one. Batches
+         *  may read standard input, so they always run here. */
+        Integer status = args.length > 0 && args[0].equals("batch") ? null : Daemon.forward(args);
+        if (status == null) {
+            status = run(args);
+        }
+        System.out.flush();
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /** Run one command in this process. Returns the exit status. */
+    static int run(String[] args) {
         if (args.length == 0) {
             System.out.println("Please enter a command.");
-            return;
+            return 0;
+        }
+        try (RepositoryLock lock = RepositoryLock.acquire(args[0])) {
+            Repository gitLet = new Repository(args[0]);
+            execute(gitLet, args);
+            /** Readers keep refreshed stat data only if no writer is busy */
+            if (lock == null || lock.canWrite()) {
+                gitLet.flush();
+            }
+        } catch (GitletException excp) {
+            System.out.println(excp.getMessage());
         }
-        Repository gitLet = new Repository(args[0]);
+        return 0;
+    }
+
+    /** Dispatch ARGS, which is not empty, to GITLET. Errors are thrown as
+     *  GitletExceptions; the caller saves GITLET's index afterwards. */
+    static void execute(Repository gitLet, String[] args) {
         //command call
         switch (args[0]) {
             case "init":
@@ -22,11 +58,19 @@ public class Main {
                 gitLet.init();
                 break;
             case "add":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 String fileName = args[1];
                 gitLet.add(fileName);
                 break;
             case "commit":
-                if (args.length == 1 | args[1].equals("")) {
+                if (args.length > 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                if (args.length == 1 || args[1].equals("")) {
                     System.out.print("Please enter a commit message.");
                     break;
                 }
@@ -46,32 +90,141 @@ public class Main {
                 }
                 break;
             case "log":
-                gitLet.log();
+                long skip = 0;
+                long limit = Long.MAX_VALUE;
+                try {
+                    for (int i = 1; i < args.length; i += 2) {
+                        if (i + 1 >= args.length) {
+                            throw new NumberFormatException();
+                        } else if (args[i].equals("-n")) {
+                            limit = Long.parseLong(args[i + 1]);
+                        } else if (args[i].equals("--skip")) {
+                            skip = Long.parseLong(args[i + 1]);
+                        } else {
+                            throw new NumberFormatException();
+                        }
+                    }
+                } catch (NumberFormatException excp) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                if (skip < 0 || limit < 0) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                gitLet.log(skip, limit);
                 break;
             case "branch":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 gitLet.branch(args[1]);
                 break;
             case "status":
                 gitLet.status();
                 break;
             case "rm":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 gitLet.rm(args[1]);
                 break;
             case "global-log":
                 gitLet.globalLog();
                 break;
             case "find":
-                gitLet.find(args[1]);
+                if (args.length < 2 || args.length > 3) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                if (args.length == 3 && (args[1].equals("--word") || args[1].equals("--prefix"))) {
+                    gitLet.findWord(args[2], args[1].equals("--prefix"));
+                } else if (args.length == 2) {
+                    gitLet.find(args[1]);
+                } else {
+                    System.out.print("Incorrect operands.");
+                }
                 break;
             case "rm-branch":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 gitLet.removeBranch(args[1]);
                 break;
             case "reset":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 gitLet.reset(args[1]);
                 break;
             case "merge":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
                 gitLet.merge(args[1]);
                 break;
+            case "repack":
+                gitLet.repack();
+                break;
+            case "migrate":
+                gitLet.migrate();
+                break;
+            case "commit-graph":
+                gitLet.writeCommitGraph();
+                break;
+            case "config":
+                if (args.length < 2 || args.length > 3) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                gitLet.config(args[1], args.length > 2 ? args[2] : null);
+                break;
+            case "gc":
+                if (args.length > 2 || (args.length == 2 && !args[1].equals("--now"))) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                gitLet.gc(args.length == 2);
+                break;
+            case "diff":
+                List<String> commits = new ArrayList<>();
+                String path = null;
+                boolean histogram = false;
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("--")) {
+                        path = i + 2 == args.length ? args[i + 1] : "";
+                        break;
+                    } else if (args[i].equals("--histogram")) {
+                        histogram = true;
+                    } else {
+                        commits.add(args[i]);
+                    }
+                }
+                if (commits.size() > 2 || "".equals(path)) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                gitLet.diff(commits.size() > 0 ? commits.get(0) : null,
+                        commits.size() > 1 ? commits.get(1) : null, path, histogram);
+                break;
+            case "stats":
+                gitLet.stats();
+                break;
+            case "batch":
+                if (args.length != 2) {
+                    System.out.print("Incorrect operands.");
+                    break;
+                }
+                Batch.run(gitLet, args[1]);
+                break;
+            case "daemon":
+                System.out.print("No daemon is running.");
+                break;
             default:
                 System.out.print("No command with that name exists.");
                 break;
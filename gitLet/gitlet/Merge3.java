@@ -0,0 +1,153 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** Three-way line merge in the manner of diff3.
+ *
+ *  The edits from the base to each side are computed on line hashes and
+ *  walked together in base order. Edits from the two sides that overlap
+ *  or touch form one region; a region changed on one side only takes
+ *  that side, and one changed identically on both sides is taken once.
+ *  Only the rest are conflicts, written between markers. The three
+ *  versions are streamed once more to write the result, so beyond the
+ *  line hashes only the edits are held. Binary files are one region.
+ */
+class Merge3 {
+
+    private static final byte[] OURS = "<<<<<<< HEAD\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SEPARATOR = "=======\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] THEIRS = ">>>>>>>\n".getBytes(StandardCharsets.UTF_8);
+
+    private final Diff.LineReader base;
+    private final Diff.LineReader ours;
+    private final Diff.LineReader theirs;
+    private final OutputStream out;
+    /** True if the last line written had no newline. */
+    private boolean unterminated;
+
+    private Merge3(Diff.LineReader base, Diff.LineReader ours, Diff.LineReader theirs,
+                   OutputStream out) {
+        this.base = base;
+        this.ours = ours;
+        this.theirs = theirs;
+        this.out = out;
+    }
+
+    /** Write to OUT the merge of the changes from BASE to OURS and from
+     *  BASE to THEIRS, where a null Source is an absent file. Returns
+     *  true if any region conflicted. */
+    static boolean merge(Diff.Source base, Diff.Source ours, Diff.Source theirs,
+                         OutputStream out) throws IOException {
+        Diff.Lines s = Diff.hash(base);
+        Diff.Lines h = Diff.hash(ours);
+        Diff.Lines b = Diff.hash(theirs);
+        List<Diff.Edit> toH;
+        List<Diff.Edit> toB;
+        if (s.binary || h.binary || b.binary) {
+            toH = List.of(new Diff.Edit(0, s.size, 0, h.size));
+            toB = List.of(new Diff.Edit(0, s.size, 0, b.size));
+        } else {
+            toH = Diff.edits(s, h, true);
+            toB = Diff.edits(s, b, true);
+        }
+        BufferedOutputStream buffered = new BufferedOutputStream(out, 64 * 1024);
+        boolean conflict;
+        try (Diff.LineReader rs = new Diff.LineReader(base);
+             Diff.LineReader rh = new Diff.LineReader(ours);
+             Diff.LineReader rb = new Diff.LineReader(theirs)) {
+            conflict = new Merge3(rs, rh, rb, buffered).walk(toH, toB, s.size, h, b);
+        }
+        buffered.flush();
+        return conflict;
+    }
+
+    private boolean walk(List<Diff.Edit> toH, List<Diff.Edit> toB, int baseSize,
+                         Diff.Lines h, Diff.Lines b) throws IOException {
+        boolean conflict = false;
+        /* Line offsets of each side relative to the base so far. */
+        int offH = 0;
+        int offB = 0;
+        int i = 0;
+        int j = 0;
+        while (i < toH.size() || j < toB.size()) {
+            boolean takeH = j == toB.size()
+                    || (i < toH.size() && toH.get(i).aStart <= toB.get(j).aStart);
+            Diff.Edit first = takeH ? toH.get(i) : toB.get(j);
+            int lo = first.aStart;
+            int hi = first.aEnd;
+            int hStart = lo + offH;
+            int bStart = lo + offB;
+            boolean hChanged = false;
+            boolean bChanged = false;
+            boolean grew = true;
+            while (grew) {
+                grew = false;
+                while (i < toH.size() && toH.get(i).aStart <= hi) {
+                    Diff.Edit e = toH.get(i++);
+                    hi = Math.max(hi, e.aEnd);
+                    offH = e.bEnd - e.aEnd;
+                    hChanged = true;
+                    grew = true;
+                }
+                while (j < toB.size() && toB.get(j).aStart <= hi) {
+                    Diff.Edit e = toB.get(j++);
+                    hi = Math.max(hi, e.aEnd);
+                    offB = e.bEnd - e.aEnd;
+                    bChanged = true;
+                    grew = true;
+                }
+            }
+            int hEnd = hi + offH;
+            int bEnd = hi + offB;
+            copy(base, lo);
+            ours.skipTo(hStart);
+            theirs.skipTo(bStart);
+            if (!bChanged || (hChanged && same(h, hStart, hEnd, b, bStart, bEnd))) {
+                copy(ours, hEnd);
+            } else if (!hChanged) {
+                copy(theirs, bEnd);
+            } else {
+                conflict = true;
+                out.write(OURS);
+                copy(ours, hEnd);
+                marker(SEPARATOR);
+                copy(theirs, bEnd);
+                marker(THEIRS);
+            }
+            base.skipTo(hi);
+            ours.skipTo(hEnd);
+            theirs.skipTo(bEnd);
+        }
+        copy(base, baseSize);
+        return conflict;
+    }
+
+    /** True if lines [x0, x1) of X hash the same as [y0, y1) of Y. */
+    private static boolean same(Diff.Lines x, int x0, int x1, Diff.Lines y, int y0, int y1) {
+        return x1 - x0 == y1 - y0
+                && Arrays.equals(x.hash, x0, x1, y.hash, y0, y1);
+    }
+
+    /** Copy lines from IN to the output until its line TO. */
+    private void copy(Diff.LineReader in, int to) throws IOException {
+        while (in.line < to) {
+            byte[] line = in.next();
+            out.write(line);
+            unterminated = line.length > 0 && line[line.length - 1] != '\n';
+        }
+    }
+
+    /** Write MARKER on a line of its own. */
+    private void marker(byte[] marker) throws IOException {
+        if (unterminated) {
+            out.write('\n');
+        }
+        out.write(marker);
+        unterminated = false;
+    }
+}
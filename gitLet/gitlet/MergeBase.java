@@ -0,0 +1,98 @@
+package gitlet;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/** Merge-base search over the commit DAG.
+ *
+ *  Both sides are painted down at once, always expanding the commit of
+ *  highest generation first. A commit reached from both sides is a
+ *  common ancestor; everything below it is marked stale, and the walk
+ *  ends as soon as only stale commits are left, so the cost follows the
+ *  divergence of the two sides rather than the length of history.
+ */
+class MergeBase {
+
+    private static final int FROM_A = 1;
+    private static final int FROM_B = 2;
+    private static final int STALE = 4;
+    private static final int RESULT = 8;
+
+    /** All best common ancestors of A and B, most recent first. There is
+     *  more than one only after criss-cross merges. */
+    static List<Integer> bestCommonAncestors(CommitGraph graph, int a, int b) {
+        List<Integer> found = new ArrayList<>();
+        if (a == b) {
+            found.add(a);
+            return found;
+        }
+        HashMap<Integer, Integer> flags = new HashMap<>();
+        /* Flags each commit had when its parents were last painted. */
+        HashMap<Integer, Integer> done = new HashMap<>();
+        /* Queue entries are {position, 1 if not stale when queued}. */
+        PriorityQueue<int[]> queue = new PriorityQueue<>((x, y) -> {
+            int cmp = Integer.compare(graph.generation(y[0]), graph.generation(x[0]));
+            return cmp != 0 ? cmp : Long.compare(graph.time(y[0]), graph.time(x[0]));
+        });
+        flags.put(a, FROM_A);
+        flags.put(b, FROM_B);
+        queue.add(new int[] {a, 1});
+        queue.add(new int[] {b, 1});
+        int live = 2;
+
+        while (live > 0) {
+            int[] entry = queue.poll();
+            live -= entry[1];
+            int c = entry[0];
+            int f = flags.get(c);
+            if (done.getOrDefault(c, -1) == f) {
+                continue;
+            }
+            int paint = f & (FROM_A | FROM_B | STALE);
+            if (paint == (FROM_A | FROM_B)) {
+                if ((f & RESULT) == 0) {
+                    f |= RESULT;
+                    flags.put(c, f);
+                    found.add(c);
+                }
+                paint |= STALE;
+            }
+            done.put(c, f);
+            for (int p : new int[] {graph.parent(c), graph.otherParent(c)}) {
+                if (p < 0) {
+                    continue;
+                }
+                int pf = flags.getOrDefault(p, 0);
+                if ((pf & paint) == paint) {
+                    continue;
+                }
+                pf |= paint;
+                flags.put(p, pf);
+                int fresh = (pf & STALE) == 0 ? 1 : 0;
+                queue.add(new int[] {p, fresh});
+                live += fresh;
+            }
+        }
+        return removeRedundant(graph, found);
+    }
+
+    /** Drop every candidate that is an ancestor of another candidate. */
+    private static List<Integer> removeRedundant(CommitGraph graph, List<Integer> candidates) {
+        List<Integer> best = new ArrayList<>();
+        for (int c : candidates) {
+            boolean redundant = false;
+            for (int other : candidates) {
+                if (other != c && graph.isAncestor(c, other)) {
+                    redundant = true;
+                    break;
+                }
+            }
+            if (!redundant) {
+                best.add(c);
+            }
+        }
+        return best;
+    }
+}
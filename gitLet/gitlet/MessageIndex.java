@@ -0,0 +1,393 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Persistent index of commit messages, so find never opens commits.
+ *
+ *  .gitlet/message-index:  "GMSG" version(int) stamp(long) count(int)
+ *  words(int), then fixed-width tables searched in place:  count commits
+ *  as id(20) message(int), sorted by id;  count pairs of hash(8)
+ *  ordinal(int) sorted by hash, where hash is the start of the message's
+ *  SHA1;  words entries of word(int) first(int) n(int), sorted by the
+ *  word's UTF-8 bytes, each naming n ordinals in the posting list that
+ *  follows;  then the strings, each length(int) UTF-8 bytes, that the
+ *  int fields point at. Words are lowercased runs of letters and digits.
+ *  Ordinals are positions in the commit table.
+ *
+ *  New commits are appended to .gitlet/message-index.log as id(20)
+ *  message(string) rather than rewriting the index, and folded in once
+ *  the log grows long. The stamp is the XOR of the stamps of the loose
+ *  commits and the packs in the store when the index was written; with
+ *  those of the logged commits it must match the store's, which costs a
+ *  listing of names, or the index is rebuilt.
+ */
+class MessageIndex {
+
+    static final File INDEX_FILE = join(Repository.GITLET_DIR, "message-index");
+    static final File LOG_FILE = join(Repository.GITLET_DIR, "message-index.log");
+    private static final int VERSION = 2;
+    private static final byte[] MAGIC = {'G', 'M', 'S', 'G'};
+    private static final int HEADER = 24;
+    private static final int COMMIT_ROW = 24;
+    private static final int EXACT_ROW = 12;
+    private static final int WORD_ROW = 12;
+    /** Log records tolerated before the index is rewritten. */
+    private static final int MAX_LOG = 1024;
+
+    /** The index as written. */
+    private ByteBuffer table;
+    private long stamp;
+    private int count;
+    private int nwords;
+    private int exactAt;
+    private int wordsAt;
+    private int postingsAt;
+    /** Commits in the log, oldest first. */
+    private final List<String> logIds = new ArrayList<>();
+    private final List<String> logMessages = new ArrayList<>();
+
+    /** Note commit C, which was just written. */
+    static void add(Commit c) {
+        if (!INDEX_FILE.isFile()) {
+            return;
+        }
+        CommitCodec.Out out = new CommitCodec.Out(64);
+        out.putId(c.getID());
+        out.putString(c.getMessage());
+        try {
+            Files.write(LOG_FILE.toPath(), out.toByteArray(),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot update the message index.");
+        }
+    }
+
+    /** The index, brought up to date with the commits in the store. */
+    static MessageIndex open() {
+        MessageIndex m = new MessageIndex();
+        long now = storeStamp();
+        boolean loaded = m.load();
+        if (loaded && m.expectedStamp() == now) {
+            if (m.logIds.size() > MAX_LOG && RepositoryLock.writable()) {
+                return write(m.all(), now);
+            }
+            return m;
+        }
+        TreeMap<String, String> all = new TreeMap<>();
+        TreeMap<String, String> known = loaded ? m.all() : new TreeMap<>();
+        for (String id : ObjectStore.commitIds()) {
+            String message = known.get(id);
+            all.put(id, message != null ? message : ObjectStore.readCommit(id).getMessage());
+        }
+        return write(all, now);
+    }
+
+    /** The stamp the store should have if the index and log are right. */
+    private long expectedStamp() {
+        long s = stamp;
+        for (String id : logIds) {
+            s ^= lead(id);
+        }
+        return s;
+    }
+
+    /** XOR of the leading bytes of every loose commit id and of a hash of
+     *  every pack's name, from directory listings alone. A pack's name is
+     *  the hash of its contents, so any change to the commits in the store
+     *  changes the stamp, barring a 64-bit collision. */
+    static long storeStamp() {
+        long s = 0;
+        String[] names = Repository.GITLET_DIR.list();
+        for (String name : names == null ? new String[0] : names) {
+            if (ObjectStore.isObjectId(name)) {
+                s ^= lead(name);
+            }
+        }
+        String[] packs = ObjectStore.PACK_DIR.list();
+        for (String name : packs == null ? new String[0] : packs) {
+            if (name.endsWith(".idx")) {
+                s ^= lead(sha1(name));
+            }
+        }
+        return s;
+    }
+
+    private static long lead(String id) {
+        return Long.parseUnsignedLong(id.substring(0, 16), 16);
+    }
+
+    /** Every commit in the index and the log, id to message. */
+    private TreeMap<String, String> all() {
+        TreeMap<String, String> result = new TreeMap<>();
+        for (int ord = 0; ord < count; ord++) {
+            result.put(id(ord), string(table.getInt(HEADER + ord * COMMIT_ROW + 20)));
+        }
+        for (int i = 0; i < logIds.size(); i++) {
+            result.put(logIds.get(i), logMessages.get(i));
+        }
+        return result;
+    }
+
+    /** Ids of commits whose message is exactly MESSAGE, sorted. */
+    List<String> exact(String message) {
+        TreeSet<String> result = new TreeSet<>();
+        long h = hash(message);
+        int lo = 0;
+        int hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Long.compareUnsigned(table.getLong(exactAt + mid * EXACT_ROW), h) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < count && table.getLong(exactAt + i * EXACT_ROW) == h; i++) {
+            int ord = table.getInt(exactAt + i * EXACT_ROW + 8);
+            if (string(table.getInt(HEADER + ord * COMMIT_ROW + 20)).equals(message)) {
+                result.add(id(ord));
+            }
+        }
+        for (int i = 0; i < logIds.size(); i++) {
+            if (logMessages.get(i).equals(message)) {
+                result.add(logIds.get(i));
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    /** Ids of commits whose message contains the word WORD, sorted. */
+    List<String> word(String word) {
+        return matching(word.toLowerCase(), false);
+    }
+
+    /** Ids of commits whose message has a word starting with PREFIX. */
+    List<String> prefix(String prefix) {
+        return matching(prefix.toLowerCase(), true);
+    }
+
+    /** Ids of commits with a word equal to W, or starting with it if
+     *  PREFIX, sorted. */
+    private List<String> matching(String w, boolean prefix) {
+        TreeSet<String> result = new TreeSet<>();
+        byte[] key = w.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = nwords;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (Arrays.compareUnsigned(word(mid), key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        for (int i = lo; i < nwords; i++) {
+            byte[] found = word(i);
+            if (prefix ? !startsWith(found, key) : !Arrays.equals(found, key)) {
+                break;
+            }
+            int first = table.getInt(wordsAt + i * WORD_ROW + 4);
+            int n = table.getInt(wordsAt + i * WORD_ROW + 8);
+            for (int j = 0; j < n; j++) {
+                result.add(id(table.getInt(postingsAt + (first + j) * 4)));
+            }
+        }
+        for (int i = 0; i < logIds.size(); i++) {
+            for (String t : tokens(logMessages.get(i))) {
+                if (prefix ? t.startsWith(w) : t.equals(w)) {
+                    result.add(logIds.get(i));
+                    break;
+                }
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static boolean startsWith(byte[] s, byte[] prefix) {
+        return s.length >= prefix.length
+                && Arrays.equals(s, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private String id(int ord) {
+        byte[] raw = new byte[20];
+        table.get(HEADER + ord * COMMIT_ROW, raw);
+        return ObjectStore.toHex(raw);
+    }
+
+    private byte[] word(int i) {
+        int at = table.getInt(wordsAt + i * WORD_ROW);
+        byte[] raw = new byte[table.getInt(at)];
+        table.get(at + 4, raw);
+        return raw;
+    }
+
+    private String string(int at) {
+        byte[] raw = new byte[table.getInt(at)];
+        table.get(at + 4, raw);
+        return new String(raw, StandardCharsets.UTF_8);
+    }
+
+    /** The distinct words of MESSAGE. */
+    static TreeSet<String> tokens(String message) {
+        TreeSet<String> result = new TreeSet<>();
+        for (String w : message.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!w.isEmpty()) {
+                result.add(w);
+            }
+        }
+        return result;
+    }
+
+    private static long hash(String message) {
+        MessageDigest md = PackFile.newDigest();
+        byte[] d = md.digest(message.getBytes(StandardCharsets.UTF_8));
+        long h = 0;
+        for (int i = 0; i < 8; i++) {
+            h = (h << 8) | (d[i] & 0xff);
+        }
+        return h;
+    }
+
+    /** Map the index and read its log. False if there is none or it
+     *  cannot be used. */
+    private boolean load() {
+        if (!INDEX_FILE.isFile()) {
+            return false;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(INDEX_FILE, "r")) {
+            table = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (!header()) {
+                return false;
+            }
+            if (LOG_FILE.isFile()) {
+                byte[] log = readContents(LOG_FILE);
+                CommitCodec.In lin = new CommitCodec.In(log);
+                while (lin.pos < log.length) {
+                    logIds.add(lin.getId());
+                    logMessages.add(lin.getString());
+                }
+            }
+        } catch (IOException | RuntimeException excp) {
+            /* Truncated or corrupt: start over. */
+            logIds.clear();
+            logMessages.clear();
+            return false;
+        }
+        return true;
+    }
+
+    /** Read the header of TABLE. False if it is not an index this
+     *  version can search. */
+    private boolean header() {
+        byte[] magic = new byte[MAGIC.length];
+        if (table.limit() < HEADER) {
+            return false;
+        }
+        table.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC) || table.getInt(4) != VERSION) {
+            return false;
+        }
+        stamp = table.getLong(8);
+        count = table.getInt(16);
+        nwords = table.getInt(20);
+        exactAt = HEADER + count * COMMIT_ROW;
+        wordsAt = exactAt + count * EXACT_ROW;
+        postingsAt = wordsAt + nwords * WORD_ROW;
+        return count >= 0 && nwords >= 0 && postingsAt <= table.limit();
+    }
+
+    /** An index of ALL, commit ids to messages, with stamp STAMP. It is
+     *  saved, dropping the log, unless another process is writing:
+     *  readers share the lock, and the stamp would not be safe. */
+    private static MessageIndex write(TreeMap<String, String> all, long stamp) {
+        MessageIndex m = new MessageIndex();
+        m.table = ByteBuffer.wrap(encode(all, stamp));
+        m.header();
+        if (!RepositoryLock.writable()) {
+            return m;
+        }
+        File tmp = join(Repository.GITLET_DIR, "message-index.tmp");
+        writeContents(tmp, (Object) m.table.array());
+        try {
+            Files.move(tmp.toPath(), INDEX_FILE.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the message index.");
+        }
+        LOG_FILE.delete();
+        return m;
+    }
+
+    private static byte[] encode(TreeMap<String, String> all, long stamp) {
+        int count = all.size();
+        List<String> messages = new ArrayList<>(all.values());
+        long[][] exact = new long[count][];
+        TreeMap<byte[], List<Integer>> words = new TreeMap<>(Arrays::compareUnsigned);
+        for (int ord = 0; ord < count; ord++) {
+            exact[ord] = new long[] {hash(messages.get(ord)), ord};
+            for (String w : tokens(messages.get(ord))) {
+                words.computeIfAbsent(w.getBytes(StandardCharsets.UTF_8),
+                        k -> new ArrayList<>()).add(ord);
+            }
+        }
+        Arrays.sort(exact, (x, y) -> x[0] != y[0] ? Long.compareUnsigned(x[0], y[0])
+                : Long.compare(x[1], y[1]));
+        int postings = 0;
+        for (List<Integer> p : words.values()) {
+            postings += p.size();
+        }
+        int stringsAt = HEADER + count * (COMMIT_ROW + EXACT_ROW)
+                + words.size() * WORD_ROW + postings * 4;
+        ByteBuffer out = ByteBuffer.allocate(stringsAt);
+        CommitCodec.Out strings = new CommitCodec.Out(64 + count * 32);
+        out.put(MAGIC).putInt(VERSION).putLong(stamp).putInt(count).putInt(words.size());
+        for (Map.Entry<String, String> c : all.entrySet()) {
+            out.put(ObjectStore.toBytes(c.getKey()));
+            out.putInt(stringsAt + putString(strings, c.getValue()
+                    .getBytes(StandardCharsets.UTF_8)));
+        }
+        for (long[] e : exact) {
+            out.putLong(e[0]).putInt((int) e[1]);
+        }
+        int first = 0;
+        for (Map.Entry<byte[], List<Integer>> w : words.entrySet()) {
+            out.putInt(stringsAt + putString(strings, w.getKey()));
+            out.putInt(first).putInt(w.getValue().size());
+            first += w.getValue().size();
+        }
+        for (List<Integer> p : words.values()) {
+            for (int o : p) {
+                out.putInt(o);
+            }
+        }
+        byte[] tail = strings.toByteArray();
+        byte[] data = Arrays.copyOf(out.array(), stringsAt + tail.length);
+        System.arraycopy(tail, 0, data, stringsAt, tail.length);
+        return data;
+    }
+
+    /** Append S to OUT as length(int) bytes and return where it starts. */
+    private static int putString(CommitCodec.Out out, byte[] s) {
+        int at = out.size();
+        out.putInt(s.length);
+        out.put(s, 0, s.length);
+        return at;
+    }
+}
@@ -0,0 +1,90 @@
+package gitlet;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.ToLongFunction;
+
+/** Least-recently-used cache of objects read from the store, keyed by id.
+ *
+ *  Entries are weighed by WEIGHER and the least recently used are evicted
+ *  once the total passes the budget. An entry heavier than a quarter of
+ *  the budget is never kept, so one large object cannot flush the rest.
+ *  Objects are content-addressed, so an entry never goes stale; callers
+ *  must not modify what they get back. Safe to use from several threads.
+ */
+class ObjectCache<V> {
+
+    private final String name;
+    private final ToLongFunction<V> weigher;
+    private final LinkedHashMap<String, V> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long budget;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    ObjectCache(String name, long budget, ToLongFunction<V> weigher) {
+        this.name = name;
+        this.budget = budget;
+        this.weigher = weigher;
+    }
+
+    /** The entry for ID, or null, counting a hit or a miss. */
+    synchronized V get(String id) {
+        V v = entries.get(id);
+        if (v == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return v;
+    }
+
+    /** True if an entry weighing WEIGHT would be kept. */
+    synchronized boolean fits(long weight) {
+        return weight <= budget / 4;
+    }
+
+    /** Keep V as the entry for ID if it fits. */
+    synchronized void put(String id, V v) {
+        long w = weigher.applyAsLong(v);
+        if (!fits(w)) {
+            return;
+        }
+        V old = entries.put(id, v);
+        if (old != null) {
+            weight -= weigher.applyAsLong(old);
+        }
+        weight += w;
+        trim();
+    }
+
+    /** Change the budget to BUDGET, evicting as needed. */
+    synchronized void resize(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, V>> it = entries.entrySet().iterator();
+        while (weight > budget && it.hasNext()) {
+            weight -= weigher.applyAsLong(it.next().getValue());
+            it.remove();
+            evictions++;
+        }
+    }
+
+    /** One line of counters for the stats command. */
+    synchronized String stats() {
+        long lookups = hits + misses;
+        return String.format("%s: %d entries, %d/%d used, %d hits, %d misses (%d%% hit), %d evicted",
+                name, entries.size(), weight, budget, hits, misses,
+                lookups == 0 ? 0 : hits * 100 / lookups, evictions);
+    }
+}
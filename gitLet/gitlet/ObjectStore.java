@@ -0,0 +1,489 @@
+package gitlet;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static gitlet.Utils.*;
+
+/** Lookup of commits and blobs, whether they are loose files or live in a
+ *  pack. New objects are always written loose; repack() rolls them into a
+ *  pack and removes the loose copies. */
+class ObjectStore {
+
+    /** Where the packs live. */
+    static final File PACK_DIR = join(Repository.GITLET_DIR, "PACK");
+    /** Loose tree objects. */
+    static final File TREE_DIR = join(Repository.GITLET_DIR, "TREE");
+
+    /** Config keys for the cache budgets: a number of commits, and
+     *  bytes of blob content. */
+    static final String COMMIT_CACHE_KEY = "cache.commits";
+    static final String BLOB_CACHE_KEY = "cache.blobBytes";
+    private static final int DEFAULT_COMMIT_CACHE = 4096;
+    private static final int DEFAULT_BLOB_CACHE = 32 << 20;
+    /** Delta bases and results are rebuilt whole in memory, a window of
+     *  them at a time when packing, so only blobs this small take part. */
+    private static final int DEFAULT_DELTA_MAX_SIZE = 4 << 20;
+
+    /** Recently read objects. Kept for the life of the process, so a
+     *  daemon or batch reuses them across commands. */
+    static final ObjectCache<Commit> COMMITS = new ObjectCache<>("commits",
+            Config.getInt(COMMIT_CACHE_KEY, DEFAULT_COMMIT_CACHE), c -> 1);
+    static final ObjectCache<byte[]> BLOBS = new ObjectCache<>("blobs",
+            Config.getInt(BLOB_CACHE_KEY, DEFAULT_BLOB_CACHE), b -> b.length);
+
+    /** Packs opened so far, loaded on first use. */
+    private static List<PackFile> packs;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** True if NAME looks like a full object id. */
+    static boolean isObjectId(String name) {
+        if (name.length() != 40) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static byte[] toBytes(String hex) {
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return result;
+    }
+
+    static String toHex(byte[] raw) {
+        char[] out = new char[raw.length * 2];
+        for (int i = 0; i < raw.length; i++) {
+            out[2 * i] = HEX[(raw[i] >> 4) & 0xf];
+            out[2 * i + 1] = HEX[raw[i] & 0xf];
+        }
+        return new String(out);
+    }
+
+    /** The packs in PACK_DIR. */
+    static synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<>();
+            List<String> names = plainFilenamesIn(PACK_DIR);
+            if (names != null) {
+                for (String name : names) {
+                    if (name.endsWith(".idx")) {
+                        packs.add(new PackFile(join(PACK_DIR, name)));
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Forget the packs opened so far, so the next lookup sees the pack
+     *  directory as it is now, and apply the current cache budgets. */
+    static synchronized void reload() {
+        if (packs != null) {
+            for (PackFile p : packs) {
+                p.close();
+            }
+            packs = null;
+        }
+        COMMITS.resize(Config.getInt(COMMIT_CACHE_KEY, DEFAULT_COMMIT_CACHE));
+        BLOBS.resize(Config.getInt(BLOB_CACHE_KEY, DEFAULT_BLOB_CACHE));
+    }
+
+    /** Payload of packed object ID, or null. */
+    private static byte[] readPacked(String id) {
+        if (!isObjectId(id)) {
+            return null;
+        }
+        for (PackFile p : packs()) {
+            byte[] payload = p.read(id);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        return null;
+    }
+
+    /** Pack type of object ID, or -1 if it is not packed. */
+    private static byte packedType(String id) {
+        if (isObjectId(id)) {
+            for (PackFile p : packs()) {
+                byte type = p.typeOf(id);
+                if (type >= 0) {
+                    return type;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isPacked(String id) {
+        if (!isObjectId(id)) {
+            return false;
+        }
+        for (PackFile p : packs()) {
+            if (p.contains(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** True if commit ID exists, loose or packed. */
+    static boolean hasCommit(String id) {
+        return join(Repository.GITLET_DIR, id).isFile() || isPacked(id);
+    }
+
+    static Commit readCommit(String id) {
+        Commit c = COMMITS.get(id);
+        if (c != null) {
+            return c;
+        }
+        File loose = join(Repository.GITLET_DIR, id);
+        if (loose.isFile()) {
+            c = CommitCodec.decode(readContents(loose));
+        } else {
+            byte[] payload = readPacked(id);
+            if (payload == null) {
+                throw new GitletException("No commit with that id exists.");
+            }
+            c = CommitCodec.decode(payload);
+        }
+        COMMITS.put(id, c);
+        return c;
+    }
+
+    /** Write C as a loose commit. */
+    static void writeCommit(Commit c) {
+        writeLoose(join(Repository.GITLET_DIR, c.getID()), CommitCodec.encode(c));
+    }
+
+    /** Encoded tree ID, loose or packed. */
+    static byte[] readTree(String id) {
+        File loose = join(TREE_DIR, id);
+        if (loose.isFile()) {
+            return readContents(loose);
+        }
+        byte[] payload = readPacked(id);
+        if (payload == null) {
+            throw new GitletException("Missing tree " + id);
+        }
+        return payload;
+    }
+
+    /** Store encoded tree DATA as ID unless it is already there. */
+    static void writeTree(String id, byte[] data) {
+        File loose = join(TREE_DIR, id);
+        if (!loose.isFile() && !isPacked(id)) {
+            TREE_DIR.mkdirs();
+            writeLoose(loose, data);
+        }
+    }
+
+    /** Write DATA to LOOSE through a temporary file in the same directory,
+     *  so readers never see a partly written object. */
+    private static void writeLoose(File loose, byte[] data) {
+        File tmp;
+        try {
+            tmp = File.createTempFile("object", ".tmp", loose.getParentFile());
+        } catch (IOException excp) {
+            throw new GitletException("Cannot create a file in the object store.");
+        }
+        writeContents(tmp, (Object) data);
+        try {
+            Files.move(tmp.toPath(), loose.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot store object " + loose.getName());
+        }
+        Journal.wrote(loose);
+    }
+
+    /** The contents of blob ID, decompressed as they are read. */
+    static InputStream openBlob(String id) throws IOException {
+        byte[] cached = BLOBS.get(id);
+        if (cached != null) {
+            return new ByteArrayInputStream(cached);
+        }
+        return openStored(id);
+    }
+
+    /** As openBlob, without looking in the cache. Loose blobs small enough
+     *  to cache and blobs rebuilt from deltas are read whole and cached;
+     *  anything else is streamed. */
+    private static InputStream openStored(String id) throws IOException {
+        File loose = join(Repository.BLOB_DIR, id);
+        if (loose.isFile()) {
+            InputStream in = Blob.decode(new FileInputStream(loose));
+            if (!BLOBS.fits(Blob.size(loose))) {
+                return in;
+            }
+            byte[] content;
+            try (in) {
+                content = in.readAllBytes();
+            }
+            BLOBS.put(id, content);
+            return new ByteArrayInputStream(content);
+        }
+        for (PackFile p : packs()) {
+            byte type = p.typeOf(id);
+            if (type == PackFile.DELTA) {
+                byte[] payload = p.read(id);
+                byte[] content = Delta.apply(readBlob(baseOf(payload)), Blob.inflate(payload, 20));
+                BLOBS.put(id, content);
+                return new ByteArrayInputStream(content);
+            } else if (type >= 0) {
+                return Blob.decode(p.open(id));
+            }
+        }
+        throw new GitletException("Missing blob " + id);
+    }
+
+    /** Original size of blob ID, read from its header or its delta. */
+    private static long blobSize(String id) throws IOException {
+        File loose = join(Repository.BLOB_DIR, id);
+        if (loose.isFile()) {
+            return Blob.size(loose);
+        }
+        for (PackFile p : packs()) {
+            byte type = p.typeOf(id);
+            if (type == PackFile.DELTA) {
+                CommitCodec.In in = new CommitCodec.In(Blob.inflate(p.read(id), 20));
+                in.getVarint();
+                return in.getVarint();
+            } else if (type >= 0) {
+                try (InputStream in = p.open(id)) {
+                    return Blob.size(in, p.length(id));
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** The base id at the front of a DELTA payload. */
+    private static String baseOf(byte[] payload) {
+        return toHex(Arrays.copyOf(payload, 20));
+    }
+
+    /** Number of deltas that must be applied to rebuild packed blob ID. */
+    private static int deltaDepth(String id) {
+        int depth = 0;
+        while (packedType(id) == PackFile.DELTA) {
+            id = baseOf(readPacked(id));
+            depth++;
+        }
+        return depth;
+    }
+
+    /** The contents of blob ID. The array may be shared; do not modify it. */
+    static byte[] readBlob(String id) {
+        byte[] cached = BLOBS.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        try (InputStream in = openStored(id)) {
+            byte[] content = in.readAllBytes();
+            BLOBS.put(id, content);
+            return content;
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read blob " + id);
+        }
+    }
+
+    /** True if blob ID exists, loose or packed. */
+    static boolean hasBlob(String id) {
+        return join(Repository.BLOB_DIR, id).isFile() || isPacked(id);
+    }
+
+    /** Store CONTENT as blob ID unless an identical blob is already there. */
+    static void writeBlob(String id, byte[] content) {
+        if (!hasBlob(id)) {
+            Blob.store(id, content);
+        }
+    }
+
+    /** Every commit id in the store, sorted. */
+    static List<String> commitIds() {
+        TreeSet<String> ids = new TreeSet<>();
+        for (String name : plainFilenamesIn(Repository.GITLET_DIR)) {
+            if (isObjectId(name)) {
+                ids.add(name);
+            }
+        }
+        for (PackFile p : packs()) {
+            for (int i = 0; i < p.size(); i++) {
+                if (p.typeAt(i) == PackFile.COMMIT) {
+                    ids.add(p.idAt(i));
+                }
+            }
+        }
+        return new ArrayList<>(ids);
+    }
+
+    /** Move every loose commit, tree and blob into a new pack. Returns the
+     *  number of objects packed.
+     *
+     *  A blob may be stored as a delta against one of the pack.window
+     *  newer versions of a file it was committed as, when that is smaller.
+     *  Chains are kept to at most pack.depth deltas, and blobs over
+     *  pack.deltaMaxSize bytes (4 MB by default) are always stored whole. */
+    static int repack() {
+        PACK_DIR.mkdirs();
+        List<PackFile.Entry> entries = new ArrayList<>();
+        for (String name : plainFilenamesIn(Repository.GITLET_DIR)) {
+            if (isObjectId(name) && !isPacked(name)) {
+                entries.add(new PackFile.Entry(name, PackFile.COMMIT,
+                        join(Repository.GITLET_DIR, name)));
+            }
+        }
+        List<String> trees = plainFilenamesIn(TREE_DIR);
+        for (String name : trees == null ? List.<String>of() : trees) {
+            if (isObjectId(name) && !isPacked(name)) {
+                entries.add(new PackFile.Entry(name, PackFile.TREE, join(TREE_DIR, name)));
+            }
+        }
+        for (String name : plainFilenamesIn(Repository.BLOB_DIR)) {
+            if (isObjectId(name) && !isPacked(name)
+                    && join(Repository.BLOB_DIR, name).length() <= PackFile.MAX_PAYLOAD) {
+                entries.add(new PackFile.Entry(name, PackFile.BLOB,
+                        join(Repository.BLOB_DIR, name)));
+            }
+        }
+        deltify(entries);
+        if (!entries.isEmpty()) {
+            packs().add(new PackFile(PackFile.write(PACK_DIR, entries)));
+        }
+        /* Only drop loose copies once the pack is installed and on disk. */
+        for (PackFile.Entry e : entries) {
+            e.source.delete();
+        }
+        return entries.size();
+    }
+
+    /** Turn the loose blobs among ENTRIES into deltas where that pays. */
+    private static void deltify(List<PackFile.Entry> entries) {
+        int window = Config.getInt("pack.window", 10);
+        int maxDepth = Config.getInt("pack.depth", 10);
+        int maxSize = Config.getInt("pack.deltaMaxSize", DEFAULT_DELTA_MAX_SIZE);
+        HashMap<String, PackFile.Entry> loose = new HashMap<>();
+        for (PackFile.Entry e : entries) {
+            if (e.type == PackFile.BLOB && sizeAtMost(e.id, maxSize)) {
+                loose.put(e.id, e);
+            }
+        }
+        if (window <= 0 || maxDepth <= 0 || loose.isEmpty()) {
+            return;
+        }
+        /* Base and chain depth of every blob made a delta so far. */
+        HashSet<String> done = new HashSet<>();
+        HashMap<String, String> base = new HashMap<>();
+        HashMap<String, Integer> depth = new HashMap<>();
+        for (List<String> versions : fileHistories()) {
+            ArrayDeque<String> recent = new ArrayDeque<>();
+            ArrayDeque<byte[]> recentContent = new ArrayDeque<>();
+            for (String id : versions) {
+                PackFile.Entry e = loose.get(id);
+                byte[] content = null;
+                if (e != null && done.add(id)) {
+                    content = readBlob(id);
+                    int bestSize = (int) e.source.length();
+                    Iterator<byte[]> contents = recentContent.iterator();
+                    for (String cand : recent) {
+                        byte[] candContent = contents.next();
+                        int d = depth.computeIfAbsent(cand, ObjectStore::deltaDepth);
+                        if (d >= maxDepth || chainHas(base, cand, id)) {
+                            continue;
+                        }
+                        byte[] delta = Blob.deflate(Delta.create(candContent, content));
+                        if (delta.length + 20 < bestSize) {
+                            bestSize = delta.length + 20;
+                            e.payload = new byte[bestSize];
+                            System.arraycopy(toBytes(cand), 0, e.payload, 0, 20);
+                            System.arraycopy(delta, 0, e.payload, 20, delta.length);
+                            base.put(id, cand);
+                            depth.put(id, d + 1);
+                        }
+                    }
+                    if (base.containsKey(id)) {
+                        e.type = PackFile.DELTA;
+                    }
+                }
+                if (e == null && !(isPacked(id) && sizeAtMost(id, maxSize))) {
+                    continue;
+                }
+                recent.addFirst(id);
+                recentContent.addFirst(content != null ? content : readBlob(id));
+                if (recent.size() > window) {
+                    recent.removeLast();
+                    recentContent.removeLast();
+                }
+            }
+        }
+    }
+
+    /** True if blob ID exists and is at most MAX bytes once rebuilt. */
+    private static boolean sizeAtMost(String id, long max) {
+        try {
+            long size = blobSize(id);
+            return size >= 0 && size <= max;
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read blob " + id);
+        }
+    }
+
+    /** True if following BASE links from FROM reaches ID. */
+    private static boolean chainHas(HashMap<String, String> base, String from, String id) {
+        for (String b = from; b != null; b = base.get(b)) {
+            if (b.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** For every path ever committed, the distinct blobs it has held,
+     *  newest first. A subtree already walked at the same path adds
+     *  nothing new and is skipped. */
+    private static List<List<String>> fileHistories() {
+        List<Commit> commits = new ArrayList<>();
+        for (String id : commitIds()) {
+            commits.add(readCommit(id));
+        }
+        commits.sort((x, y) -> Long.compare(y.getTime(), x.getTime()));
+        TreeMap<String, LinkedHashSet<String>> byPath = new TreeMap<>();
+        HashSet<String> seen = new HashSet<>();
+        for (Commit c : commits) {
+            Tree.walk(c.getTree(), "", seen, (path, id) ->
+                    byPath.computeIfAbsent(path, k -> new LinkedHashSet<>()).add(id));
+        }
+        List<List<String>> result = new ArrayList<>();
+        for (LinkedHashSet<String> ids : byPath.values()) {
+            result.add(new ArrayList<>(ids));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,372 @@
+package gitlet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/** An append-only pack of objects plus its sorted, fan-out index.
+ *
+ *  pack-X.pack:  "GPAK" version count, then per object
+ *                [type byte][int length][payload], then a SHA1 trailer.
+ *  pack-X.idx:   "GIDX" version, int[256] cumulative fan-out by first
+ *                id byte, count raw 20-byte ids in sorted order, count
+ *                long offsets into the pack, count type bytes, then the
+ *                pack's trailer.
+ *
+ *  The index is memory-mapped; a lookup is a binary search inside the
+ *  fan-out bucket of the id's first byte.
+ */
+class PackFile {
+
+    static final int VERSION = 1;
+    private static final byte[] PACK_MAGIC = {'G', 'P', 'A', 'K'};
+    private static final byte[] IDX_MAGIC = {'G', 'I', 'D', 'X'};
+    private static final int ID_BYTES = 20;
+    /** Offset of the first id in the index (magic, version, fan-out). */
+    private static final int IDS_START = 8 + 256 * 4;
+
+    /** Object types stored in a pack. A DELTA is a blob stored as the
+     *  20-byte id of its base blob followed by a compressed Delta. */
+    static final byte COMMIT = 1;
+    static final byte BLOB = 2;
+    static final byte DELTA = 3;
+    static final byte TREE = 4;
+    /** Largest payload a pack entry can hold; bigger objects stay loose. */
+    static final long MAX_PAYLOAD = Integer.MAX_VALUE;
+
+    private final File packFile;
+    private final MappedByteBuffer index;
+    private final int count;
+    /** Opened on first read and kept for the life of the process. */
+    private FileChannel channel;
+
+    /** Open the pack whose index is IDXFILE. */
+    PackFile(File idxFile) {
+        String name = idxFile.getName();
+        packFile = new File(idxFile.getParentFile(),
+                name.substring(0, name.length() - ".idx".length()) + ".pack");
+        try (RandomAccessFile raf = new RandomAccessFile(idxFile, "r")) {
+            index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } catch (IOException excp) {
+            throw new GitletException("Cannot open pack index " + name);
+        }
+        byte[] magic = new byte[4];
+        index.get(0, magic);
+        if (!Arrays.equals(magic, IDX_MAGIC) || index.getInt(4) != VERSION) {
+            throw new GitletException("Unsupported pack index " + name);
+        }
+        count = index.getInt(8 + 255 * 4);
+    }
+
+    /** Number of objects in this pack. */
+    int size() {
+        return count;
+    }
+
+    /** Position of raw ID in the index, or -1. */
+    int find(byte[] id) {
+        int first = id[0] & 0xff;
+        int lo = first == 0 ? 0 : index.getInt(8 + (first - 1) * 4);
+        int hi = index.getInt(8 + first * 4) - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareAt(mid, id);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    boolean contains(String id) {
+        return find(ObjectStore.toBytes(id)) >= 0;
+    }
+
+    /** Type of object ID, or -1 if it is not here. */
+    byte typeOf(String id) {
+        int pos = find(ObjectStore.toBytes(id));
+        return pos < 0 ? -1 : typeAt(pos);
+    }
+
+    /** The id at index position POS as hex. */
+    String idAt(int pos) {
+        byte[] id = new byte[ID_BYTES];
+        index.get(IDS_START + pos * ID_BYTES, id);
+        return ObjectStore.toHex(id);
+    }
+
+    private long offsetAt(int pos) {
+        return index.getLong(IDS_START + count * ID_BYTES + pos * 8);
+    }
+
+    private int compareAt(int pos, byte[] id) {
+        int base = IDS_START + pos * ID_BYTES;
+        for (int i = 0; i < ID_BYTES; i++) {
+            int cmp = (index.get(base + i) & 0xff) - (id[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return 0;
+    }
+
+    /** Type of the object at index position POS. */
+    byte typeAt(int pos) {
+        return index.get(IDS_START + count * (ID_BYTES + 8) + pos);
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (channel == null) {
+            channel = FileChannel.open(packFile.toPath());
+        }
+        return channel;
+    }
+
+    /** The pack data file. */
+    File file() {
+        return packFile;
+    }
+
+    /** The index file. */
+    File indexFile() {
+        String name = packFile.getName();
+        return new File(packFile.getParentFile(),
+                name.substring(0, name.length() - ".pack".length()) + ".idx");
+    }
+
+    /** Release the pack's file handle. */
+    synchronized void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException excp) {
+                /* Nothing useful to do about it. */
+            }
+            channel = null;
+        }
+    }
+
+    /** Payload length of the object with hex ID, or -1 if it is not here. */
+    long length(String id) {
+        int pos = find(ObjectStore.toBytes(id));
+        if (pos < 0) {
+            return -1;
+        }
+        try {
+            ByteBuffer head = ByteBuffer.allocate(5);
+            channel().read(head, offsetAt(pos));
+            return head.getInt(1);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read pack " + packFile.getName());
+        }
+    }
+
+    /** A stream over the payload of the object with hex ID, read in place
+     *  from the pack, or null if it is not here. */
+    InputStream open(String id) {
+        long len = length(id);
+        if (len < 0) {
+            return null;
+        }
+        long start = offsetAt(find(ObjectStore.toBytes(id))) + 5;
+        return new InputStream() {
+            private long at = start;
+            private final long end = start + len;
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int n) throws IOException {
+                if (at >= end) {
+                    return -1;
+                }
+                ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(n, end - at));
+                int got = channel().read(buf, at);
+                if (got < 0) {
+                    throw new IOException("truncated pack");
+                }
+                at += got;
+                return got;
+            }
+        };
+    }
+
+    /** Payload of the object with hex ID, or null if it is not here. */
+    byte[] read(String id) {
+        int pos = find(ObjectStore.toBytes(id));
+        if (pos < 0) {
+            return null;
+        }
+        try {
+            FileChannel ch = channel();
+            long off = offsetAt(pos);
+            ByteBuffer head = ByteBuffer.allocate(5);
+            ch.read(head, off);
+            byte[] payload = new byte[head.getInt(1)];
+            ByteBuffer body = ByteBuffer.wrap(payload);
+            long at = off + 5;
+            while (body.hasRemaining()) {
+                int n = ch.read(body, at);
+                if (n < 0) {
+                    throw new IOException("truncated pack");
+                }
+                at += n;
+            }
+            return payload;
+        } catch (IOException excp) {
+            throw new GitletException("Cannot read pack " + packFile.getName());
+        }
+    }
+
+    /** One object waiting to be packed, taken from a loose file, from an
+     *  existing pack, or, for deltas, from PAYLOAD. Payloads are limited
+     *  to MAX_PAYLOAD bytes. */
+    static class Entry {
+        final String id;
+        byte type;
+        final File source;
+        /** Pack the object is copied from, when SOURCE is null. */
+        final PackFile from;
+        byte[] payload;
+
+        Entry(String id, byte type, File source) {
+            this(id, type, source, null);
+        }
+
+        Entry(String id, byte type, PackFile from) {
+            this(id, type, null, from);
+        }
+
+        private Entry(String id, byte type, File source, PackFile from) {
+            this.id = id;
+            this.type = type;
+            this.source = source;
+            this.from = from;
+        }
+
+        long length() {
+            return payload != null ? payload.length
+                    : from != null ? from.length(id) : source.length();
+        }
+    }
+
+    /** Write ENTRIES as a new pack and index in DIR. The pair only becomes
+     *  visible once both files are complete, and is on disk before this
+     *  returns, so the caller may then delete the sources. Returns the
+     *  index file. */
+    static File write(File dir, List<Entry> entries) {
+        List<Entry> sorted = new ArrayList<>(entries);
+        sorted.sort(Comparator.comparing(e -> e.id));
+        long[] offsets = new long[sorted.size()];
+        File tmpPack = new File(dir, "tmp_pack");
+        File tmpIdx = new File(dir, "tmp_idx");
+        MessageDigest md = newDigest();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DigestOutputStream(new FileOutputStream(tmpPack), md)))) {
+            out.write(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            long at = 12;
+            for (int i = 0; i < sorted.size(); i++) {
+                Entry e = sorted.get(i);
+                long length = e.length();
+                offsets[i] = at;
+                out.writeByte(e.type);
+                out.writeInt((int) length);
+                if (e.payload != null) {
+                    out.write(e.payload);
+                } else if (e.from != null) {
+                    try (InputStream in = e.from.open(e.id)) {
+                        in.transferTo(out);
+                    }
+                } else {
+                    try (InputStream in = new FileInputStream(e.source)) {
+                        in.transferTo(out);
+                    }
+                }
+                at += 5 + length;
+            }
+            out.flush();
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write pack.");
+        }
+        byte[] trailer = md.digest();
+        try (FileOutputStream tail = new FileOutputStream(tmpPack, true)) {
+            tail.write(trailer);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write pack.");
+        }
+
+        int[] fanout = new int[256];
+        for (Entry e : sorted) {
+            fanout[Integer.parseInt(e.id.substring(0, 2), 16)]++;
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpIdx)))) {
+            out.write(IDX_MAGIC);
+            out.writeInt(VERSION);
+            int running = 0;
+            for (int n : fanout) {
+                running += n;
+                out.writeInt(running);
+            }
+            for (Entry e : sorted) {
+                out.write(ObjectStore.toBytes(e.id));
+            }
+            for (long off : offsets) {
+                out.writeLong(off);
+            }
+            for (Entry e : sorted) {
+                out.writeByte(e.type);
+            }
+            out.write(trailer);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write pack index.");
+        }
+
+        String name = "pack-" + ObjectStore.toHex(trailer);
+        File pack = new File(dir, name + ".pack");
+        File idx = new File(dir, name + ".idx");
+        try {
+            Files.move(tmpPack.toPath(), pack.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tmpIdx.toPath(), idx.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot install pack " + name);
+        }
+        Journal.sync(pack, idx);
+        return idx;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException excp) {
+            throw new IllegalArgumentException("System does not support SHA-1");
+        }
+    }
+}
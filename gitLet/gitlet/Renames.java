@@ -0,0 +1,277 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static gitlet.Utils.*;
+
+/** Rename detection between two trees, for merge.
+ *
+ *  Paths deleted and added between the trees are first paired when
+ *  their blob ids are equal. The rest are compared by MinHash sketches
+ *  of their sets of line hashes: K minimums under K hash functions,
+ *  whose agreement estimates the fraction of distinct lines two files
+ *  share. Candidate pairs come from locality-sensitive hashing, BANDS
+ *  buckets of ROWS sketch values each, so files are never compared all
+ *  against all. Pairs at or above merge.renameThreshold percent are
+ *  taken best first, each path used once.
+ *
+ *  Sketches depend only on content, so they are kept by blob id in
+ *  .gitlet/sketches:  "GSKT" version, then records of id(20) and K
+ *  ints, appended as new blobs are sketched.
+ */
+class Renames {
+
+    static final File SKETCH_FILE = join(Repository.GITLET_DIR, "sketches");
+    static final String THRESHOLD_KEY = "merge.renameThreshold";
+    private static final int DEFAULT_THRESHOLD = 50;
+    private static final int VERSION = 1;
+    private static final byte[] MAGIC = {'G', 'S', 'K', 'T'};
+    private static final int ROWS = 3;
+    private static final int BANDS = 21;
+    private static final int K = ROWS * BANDS;
+    private static final int RECORD_SIZE = 20 + 4 * K;
+    /** Largest bucket searched; bigger ones hold boilerplate. */
+    private static final int MAX_BUCKET = 64;
+
+    /** Sketches read from or appended to SKETCH_FILE. */
+    private static HashMap<String, int[]> sketches;
+    /** True if SKETCH_FILE has a header this version cannot read. */
+    private static boolean rejected;
+    /** Ids sketched since the file was last written. */
+    private static final List<String> pending = new ArrayList<>();
+    /** Seeds of the K hash functions. */
+    private static final long[] SEEDS = new long[K];
+
+    static {
+        long x = 0x5851f42d4c957f2dL;
+        for (int i = 0; i < K; i++) {
+            x = mix(x + i);
+            SEEDS[i] = x;
+        }
+    }
+
+    /** The renames among CHANGES, paths mapped to {old blob, new blob}
+     *  as from Tree.diff, as old path to new path. */
+    static Map<String, String> detect(Map<String, String[]> changes) {
+        TreeMap<String, String> result = new TreeMap<>();
+        HashMap<String, ArrayDeque<String>> deletedById = new HashMap<>();
+        List<String> added = new ArrayList<>();
+        for (Map.Entry<String, String[]> c : changes.entrySet()) {
+            if (c.getValue()[1] == null) {
+                deletedById.computeIfAbsent(c.getValue()[0], k -> new ArrayDeque<>())
+                        .add(c.getKey());
+            } else if (c.getValue()[0] == null) {
+                added.add(c.getKey());
+            }
+        }
+        List<String> unmatched = new ArrayList<>();
+        for (String path : added) {
+            ArrayDeque<String> same = deletedById.get(changes.get(path)[1]);
+            if (same != null && !same.isEmpty()) {
+                result.put(same.poll(), path);
+            } else {
+                unmatched.add(path);
+            }
+        }
+        List<String> deleted = new ArrayList<>();
+        for (ArrayDeque<String> paths : deletedById.values()) {
+            deleted.addAll(paths);
+        }
+        if (!unmatched.isEmpty() && !deleted.isEmpty()) {
+            similar(changes, deleted, unmatched, result);
+        }
+        return result;
+    }
+
+    /** Pair paths in DELETED with paths in ADDED whose contents are
+     *  similar enough, best pairs first, into RESULT. */
+    private static void similar(Map<String, String[]> changes, List<String> deleted,
+                                List<String> added, Map<String, String> result) {
+        int threshold = Config.getInt(THRESHOLD_KEY, DEFAULT_THRESHOLD);
+        int[][] from = new int[deleted.size()][];
+        HashMap<Long, List<Integer>> buckets = new HashMap<>();
+        for (int i = 0; i < from.length; i++) {
+            from[i] = sketch(changes.get(deleted.get(i))[0]);
+            if (from[i] == null) {
+                continue;
+            }
+            for (int band = 0; band < BANDS; band++) {
+                List<Integer> bucket = buckets.computeIfAbsent(bandKey(from[i], band),
+                        k -> new ArrayList<>());
+                if (bucket.size() < MAX_BUCKET) {
+                    bucket.add(i);
+                }
+            }
+        }
+        /* {score, added index, deleted index} for every likely pair. */
+        List<int[]> pairs = new ArrayList<>();
+        HashSet<Integer> seen = new HashSet<>();
+        for (int j = 0; j < added.size(); j++) {
+            int[] to = sketch(changes.get(added.get(j))[1]);
+            if (to == null) {
+                continue;
+            }
+            seen.clear();
+            for (int band = 0; band < BANDS; band++) {
+                List<Integer> bucket = buckets.get(bandKey(to, band));
+                if (bucket == null) {
+                    continue;
+                }
+                for (int i : bucket) {
+                    if (!seen.add(i)) {
+                        continue;
+                    }
+                    int score = similarity(from[i], to);
+                    if (score >= threshold) {
+                        pairs.add(new int[] {score, j, i});
+                    }
+                }
+            }
+        }
+        pairs.sort((x, y) -> x[0] != y[0] ? Integer.compare(y[0], x[0])
+                : x[1] != y[1] ? Integer.compare(x[1], y[1]) : Integer.compare(x[2], y[2]));
+        boolean[] usedAdded = new boolean[added.size()];
+        boolean[] usedDeleted = new boolean[deleted.size()];
+        for (int[] p : pairs) {
+            if (!usedAdded[p[1]] && !usedDeleted[p[2]]) {
+                usedAdded[p[1]] = true;
+                usedDeleted[p[2]] = true;
+                result.put(deleted.get(p[2]), added.get(p[1]));
+            }
+        }
+        flush();
+    }
+
+    /** Percentage of sketch values X and Y share. */
+    private static int similarity(int[] x, int[] y) {
+        int same = 0;
+        for (int i = 0; i < K; i++) {
+            if (x[i] == y[i]) {
+                same++;
+            }
+        }
+        return same * 100 / K;
+    }
+
+    private static long bandKey(int[] sketch, int band) {
+        long h = band;
+        for (int r = band * ROWS; r < (band + 1) * ROWS; r++) {
+            h = h * 0x9e3779b97f4a7c15L + sketch[r];
+        }
+        return h;
+    }
+
+    /** The sketch of blob ID, or null if it has no lines or is binary. */
+    private static int[] sketch(String id) {
+        load();
+        int[] s = sketches.get(id);
+        if (s != null || sketches.containsKey(id)) {
+            return s;
+        }
+        Diff.Lines lines = Diff.hash(() -> ObjectStore.openBlob(id));
+        if (lines.size > 0 && !lines.binary) {
+            s = new int[K];
+            Arrays.fill(s, Integer.MAX_VALUE);
+            for (int n = 0; n < lines.size; n++) {
+                long line = lines.hash[n];
+                for (int i = 0; i < K; i++) {
+                    int v = (int) (mix(line + SEEDS[i]) >>> 32);
+                    if (v < s[i]) {
+                        s[i] = v;
+                    }
+                }
+            }
+        }
+        sketches.put(id, s);
+        if (s != null) {
+            pending.add(id);
+        }
+        return s;
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        return h ^ (h >>> 33);
+    }
+
+    private static void load() {
+        if (sketches != null) {
+            return;
+        }
+        sketches = new HashMap<>();
+        if (!SKETCH_FILE.isFile()) {
+            return;
+        }
+        byte[] data = readContents(SKETCH_FILE);
+        CommitCodec.In in = new CommitCodec.In(data);
+        if (data.length < 8 || in.get() != MAGIC[0] || in.get() != MAGIC[1]
+                || in.get() != MAGIC[2] || in.get() != MAGIC[3] || in.getInt() != VERSION) {
+            rejected = true;
+            return;
+        }
+        /* A torn record at the end is ignored; the next flush rewrites. */
+        while (in.pos + RECORD_SIZE <= data.length) {
+            String id = in.getId();
+            int[] s = new int[K];
+            for (int i = 0; i < K; i++) {
+                s[i] = in.getInt();
+            }
+            sketches.put(id, s);
+        }
+    }
+
+    /** Append the sketches made since the last call, or rewrite the file
+     *  with all of them if it is missing, damaged or was rejected. */
+    private static void flush() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long length = SKETCH_FILE.isFile() ? SKETCH_FILE.length() : 0;
+        boolean rewrite = rejected || length < 8 || (length - 8) % RECORD_SIZE != 0;
+        List<String> ids = new ArrayList<>(pending);
+        if (rewrite) {
+            ids.clear();
+            for (Map.Entry<String, int[]> e : sketches.entrySet()) {
+                if (e.getValue() != null) {
+                    ids.add(e.getKey());
+                }
+            }
+        }
+        CommitCodec.Out out = new CommitCodec.Out(8 + ids.size() * RECORD_SIZE);
+        if (rewrite) {
+            out.put(MAGIC, 0, MAGIC.length);
+            out.putInt(VERSION);
+        }
+        for (String id : ids) {
+            out.putId(id);
+            for (int v : sketches.get(id)) {
+                out.putInt(v);
+            }
+        }
+        pending.clear();
+        try {
+            if (rewrite) {
+                Files.write(SKETCH_FILE.toPath(), out.toByteArray());
+                rejected = false;
+            } else {
+                Files.write(SKETCH_FILE.toPath(), out.toByteArray(), StandardOpenOption.APPEND);
+            }
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write the sketch cache.");
+        }
+    }
+}
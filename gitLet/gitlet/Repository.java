@@ -1,7 +1,15 @@
 package gitlet;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static gitlet.Utils.*;
 import static gitlet.Utils.writeContents;
@@ -9,12 +17,12 @@ import static gitlet.Utils.writeContents;
 public class Repository {
 
     /** Only contains files that are eligible to be added.
-     *  first is Filename, the second is SHA1 */
+     *  first is Filename, the second is SHA1. A view of the index. */
     private HashMap<String, String> addStage;
-    /** sha1 */
+    /** Files staged for removal. A view of the index. */
     private HashSet<String> removeStage;
-    /** Commit Tree. */
-    private HashMap<String, Commit> commitHistory; //
+    /** Staging area and stat cache of the working tree. */
+    private Index index;
     /** Current Commit SHA1 code. */
     private String headPos;
     /** Current Commit. */
@@ -26,11 +34,10 @@ public class Repository {
     /** The structure of the .gitlet directory. */
     public static final File GITLET_DIR = join(CWD, ".gitlet");
     public static final File BLOB_DIR = join(GITLET_DIR, "BLOB");
+    /** Held copies of staged files before add wrote blobs directly. */
     public static final File STAGE_DIR = join(GITLET_DIR, "STAGE");
     public static final File BRANCH_DIR = join(GITLET_DIR, "BRANCH");
     public static final File WORK_DIR = join(GITLET_DIR, "ACTIVE");
-    public static final File REMOVE_DIR = join(GITLET_DIR, "REMOVE");
-    public static final File SPLIT_DIR = join(BRANCH_DIR, "SPLIT");
     /** Current Commit Head */
     private static final File CURRENT_COMMIT_SAVE = join(WORK_DIR, "currentCommitSave");
     /** Contains the current branch name */
@@ -40,16 +47,14 @@ public class Repository {
     public static void setupPersistence() {
         // Check exist
         if (BLOB_DIR.exists()) {
-            System.out.println("A Gitlet version-control system "
+            throw new GitletException("A Gitlet version-control system "
                     + "already exists in the current directory.");
-            System.exit(0);
         }
         BLOB_DIR.mkdirs();
-        STAGE_DIR.mkdirs();
         BRANCH_DIR.mkdirs();
         WORK_DIR.mkdirs();
-        REMOVE_DIR.mkdirs();
-        SPLIT_DIR.mkdirs();
+        ObjectStore.PACK_DIR.mkdirs();
+        ObjectStore.TREE_DIR.mkdirs();
     }
     // Load existed git log. If not init(), return.
     public Repository(String command) {
@@ -57,17 +62,15 @@ public class Repository {
         if (!BLOB_DIR.exists() && command.equals("init")) {
             return;
         } else if (!BLOB_DIR.exists() && !command.equals("init")) {
-            System.out.println("Not in an initialized Gitlet directory.");
-            System.exit(0);
+            throw new GitletException("Not in an initialized Gitlet directory.");
         }
         // get the head Commit. Should be the menu of the current git folder
-        this.currentCommit = readObject(CURRENT_COMMIT_SAVE, Commit.class);
+        this.currentCommit = CommitCodec.decode(readContents(CURRENT_COMMIT_SAVE));
 
-        // Important Collection classes
-        addStage = new HashMap<>();
-        removeStage = new HashSet<String>();
-        this.stageBuilder(); // build current stage based on added file
-        this.removeStageBuilder(); // build removeStage based on the removal list.
+        // Important Collection classes, read from the index
+        index = Index.load(currentCommit::getList);
+        addStage = index.added();
+        removeStage = index.removed();
 
         // Important variables
         this.headPos = this.currentCommit.getID();
@@ -80,53 +83,60 @@ public class Repository {
         /** Track the base files */
         headPos = sentinel.getID();
         currentCommit = sentinel;
+        Journal txn = Journal.begin();
         // The first sha1 commit save
-        File commitSave = join(GITLET_DIR, headPos);
-        writeObject(commitSave, currentCommit);
+        ObjectStore.writeCommit(currentCommit);
         // CurrentCommitSave: with only sentinel
-        writeObject(CURRENT_COMMIT_SAVE, currentCommit);
+        txn.write(CURRENT_COMMIT_SAVE, CommitCodec.encode(currentCommit));
         // New brach master and Set the current branch to master
         currentBranchName = "master";
-        branch("master");
-        writeContents(CURRENT_BRANCH, currentBranchName);
+        txn.write(join(BRANCH_DIR, currentBranchName), headPos);
+        txn.write(CURRENT_BRANCH, currentBranchName);
+        txn.commit();
+        index = Index.load(currentCommit::getList);
+    }
+
+    /** Persist whatever the last command changed in the index. */
+    public void flush() {
+        if (index != null) {
+            index.save();
+        }
+    }
+
+    /** Add the head commit and the index to TXN and commit it. */
+    private void saveCurrentCommit(Journal txn) {
+        txn.write(CURRENT_COMMIT_SAVE, CommitCodec.encode(currentCommit));
+        txn.write(Index.INDEX_FILE, index.encode());
+        txn.commit();
+        index.saved();
     }
 
     /** Add the marked file */
     public void add(String fileName) {
         // Untracked file
         File stagingFile = join(CWD, fileName);
-        // The save in Stage
-        File stagedFile = join(STAGE_DIR, fileName);
 
         /** Check existency */
         if (!stagingFile.exists()) {
             System.out.println("File does not exist.");
             return;
         }
-        /** Check remove */
-        /** Update rmFiles to restore rmf */
-        File rmf = join(REMOVE_DIR, fileName);
-        rmf.delete();
         /** File exists!
          *  If current commit has nothing, add it!
          *  If current commit have it check version! */
-        if (currentCommit.getList() != null
-                && currentCommit.getList().containsKey(fileName)) {
-            File oldVersion = join(BLOB_DIR, currentCommit.getList().get(fileName));
-            /** Check content */
-            if (compareFile(stagingFile, oldVersion)) {
-                /** same as remove */
-                addStage.remove(fileName);
-                stagedFile.delete();
-                return;
-            }
+        String headVersion = currentCommit.getList().get(fileName);
+        /** Check content, trusting the stat cache when it can. Otherwise
+         *  hashing and storing the blob is one pass over the file, and the
+         *  store keeps nothing new if the content is already there. */
+        String version = index.isClean(fileName, stagingFile)
+                ? headVersion : Blob.store(stagingFile);
+        if (version.equals(headVersion)) {
+            /** same as remove; this also restores a removed file */
+            index.unstage(fileName, headVersion);
+            index.refresh(fileName, stagingFile);
+            return;
         }
-        // All saving File related uses read/write contents
-        byte[] content = readContents(stagingFile);
-        String version = sha1(content);
-        addStage.put(fileName, version);
-        // Note: it supports overwrite.
-        writeContents(stagedFile, content);
+        index.stageAdd(fileName, version, stagingFile);
     }
 
 
@@ -135,22 +145,16 @@ public class Repository {
 
         HashMap<String, String> currentList = currentCommit.getList();
         if (currentList.containsKey(fileName)) {
-            File rmF = join(REMOVE_DIR, fileName);
-            removeStage.add(fileName);
             // Delete the current file in the working folder.
-            restrictedDelete(join(CWD, fileName));
-            // Save the current remove stage and put version number of that file in the save
-            String versionNum = currentList.get(fileName);
-            writeContents(rmF, versionNum);
+            removeWorkingFile(fileName);
+            // Record the removal along with the version being removed
+            index.stageRemove(fileName, currentList.get(fileName));
         } else {
             /** Check Stage for added file */
-            File stagedFile = join(STAGE_DIR, fileName);
-            if (!stagedFile.exists()) {
+            if (!addStage.containsKey(fileName)) {
                 System.out.println("No reason to remove the file.");
             } else {
-                /** no need to update Stage tho */
-                stagedFile.delete();
-                addStage.remove(fileName);
+                index.unstage(fileName, null);
             }
         }
         return;
@@ -165,41 +169,23 @@ public class Repository {
         }
         /** Update Commit history */
         Commit newCommit = new Commit(commitInfo, headPos);
-        newCommit.addStaged(currentCommit.getList());
-        /** removeStage contains all filename for removal
-         *  files for removal can't be in Stage (unstaged already)*/
-        for (String i : removeStage) {
-            newCommit.getList().remove(i);
+        /** New trees and the commit are forced along with the journal */
+        Journal txn = Journal.begin();
+        /** Only the trees along staged paths are written again */
+        newCommit.setTree(Tree.update(currentCommit.getTree(), stagedChanges()));
+        /** Staged blobs are already in the store; they only need forcing */
+        for (String id : addStage.values()) {
+            txn.needs(join(BLOB_DIR, id));
         }
-        /** put all newly added file record to newCommit.getList() */
-        newCommit.addStaged(addStage);
         /** Saving process */
+        txn.update(findBranch(currentBranchName), headPos, newCommit.getID());
         currentCommit = newCommit;
         headPos = currentCommit.getID();
-        writeObject(CURRENT_COMMIT_SAVE, currentCommit);
-        File newCommitSave = join(GITLET_DIR, currentCommit.getID());
-        writeObject(newCommitSave, currentCommit);
-        writeContents(findBranch(currentBranchName), newCommit.getID());
-
-        /** Update Blob */
-        for (String i : addStage.keySet()) {
-            File stagedFile = join(STAGE_DIR, i);
-            byte[] content = readContents(stagedFile);
-            /** name the new Blob by the file SHA1 code (version number) */
-            File newBlob = join(BLOB_DIR, newCommit.getList().get(i));
-            writeContents(newBlob, content);
-        }
-
-        /** Clear Stage, only needs to remove the temp Files in stage */
-        for (String i : plainFilenamesIn(STAGE_DIR)) {
-            File delFile = join(STAGE_DIR, i);
-            delFile.delete();
-        }
-        /** Clear removeStage */
-        for (String i : plainFilenamesIn(REMOVE_DIR)) {
-            File delFile = join(REMOVE_DIR, i);
-            delFile.delete();
-        }
+        ObjectStore.writeCommit(currentCommit);
+        clearStage();
+        saveCurrentCommit(txn);
+        MessageIndex.add(currentCommit);
+        CommitTable.add(currentCommit.getID());
     }
 
     private void mergeCommit(String mainName, String mergeInName, String mainID, String mergeInID) {
@@ -209,52 +195,41 @@ public class Repository {
         }
         /** Update Commit history */
         Commit newCommit = new Commit(mainName, mergeInName, mainID, mergeInID);
-        newCommit.addStaged(currentCommit.getList());
-        /** removeStage contains all filename for removal
-         *  files for removal can't be in Stage (unstaged already)*/
-        for (String i : removeStage) {
-            newCommit.getList().remove(i);
+        /** New trees and the commit are forced along with the journal */
+        Journal txn = Journal.begin();
+        /** Only the trees along staged paths are written again */
+        newCommit.setTree(Tree.update(currentCommit.getTree(), stagedChanges()));
+        /** Staged blobs are already in the store; they only need forcing */
+        for (String id : addStage.values()) {
+            txn.needs(join(BLOB_DIR, id));
         }
-        /** put all newly added file record to newCommit.getList() */
-        newCommit.addStaged(addStage);
         /** Saving process */
+        txn.update(findBranch(currentBranchName), headPos, newCommit.getID());
         currentCommit = newCommit;
-        writeObject(CURRENT_COMMIT_SAVE, currentCommit);
-        File newCommitSave = join(GITLET_DIR, currentCommit.getID());
-        writeObject(newCommitSave, currentCommit);
-        writeContents(findBranch(currentBranchName), newCommit.getID());
+        headPos = currentCommit.getID();
+        ObjectStore.writeCommit(currentCommit);
+        clearStage();
+        saveCurrentCommit(txn);
+        MessageIndex.add(currentCommit);
+        CommitTable.add(currentCommit.getID());
+    }
 
-        /** Update Blob */
-        for (String i : addStage.keySet()) {
-            File stagedFile = join(STAGE_DIR, i);
-            byte[] content = readContents(stagedFile);
-            /** name the new Blob by the file SHA1 code (version number) */
-            File newBlob = join(BLOB_DIR, newCommit.getList().get(i));
-            writeContents(newBlob, content);
-        }
-        /** Clear Stage, only needs to remove the temp Files in stage */
-        for (String i : plainFilenamesIn(STAGE_DIR)) {
-            File delFile = join(STAGE_DIR, i);
-            delFile.delete();
-        }
-        /** Clear removeStage */
-        for (String i : plainFilenamesIn(REMOVE_DIR)) {
-            File delFile = join(REMOVE_DIR, i);
-            delFile.delete();
+    /** The staging area as changes to the head's files: staged paths to
+     *  their new blob ids, removed paths to null. */
+    private HashMap<String, String> stagedChanges() {
+        HashMap<String, String> changes = new HashMap<>(addStage);
+        for (String i : removeStage) {
+            changes.put(i, null);
         }
+        return changes;
+    }
+
+    /** Empty the staging area so the index matches currentCommit. */
+    private void clearStage() {
+        index.reset(currentCommit.getList());
     }
 
     private void logHelper(Commit c) {
-        if (c.getParent() == null) {
-            System.out.println("===");
-            System.out.println("commit " + c.getID());
-            if (c.isMerge()) {
-                System.out.println(c.getParents());
-            }
-            System.out.println("Date: " + c.getTimestamp());
-            System.out.println(c.getMessage());
-            return;
-        }
         System.out.println("===");
         System.out.println("commit " + c.getID());
         if (c.isMerge()) {
@@ -262,47 +237,39 @@ public class Repository {
         }
         System.out.println("Date: " + c.getTimestamp());
         System.out.println(c.getMessage());
-        System.out.println();
-        logHelper(commitHistory.get(c.getParent()));
     }
 
-    /** Only specify commitHistory over here */
-    public void log() {
-        /** Traverse back from current Commit Head */
-        this.commitHistory = new HashMap<>();
-        branchBuilder();
-        logHelper(currentCommit);
+    /** Traverse back from current Commit Head along first parents,
+     *  passing over the first SKIP and printing at most LIMIT. Each commit is printed as soon as it is read. */
+    public void log(long skip, long limit) {
+        History history = new History(currentCommit.getID());
+        history.skip(skip);
+        for (long n = 0; history.hasNext() && n < limit; n++) {
+            if (n > 0) {
+                System.out.println();
+            }
+            logHelper(history.next());
+        }
     }
 
     /** Checkout case 1: fix the version of file */
     public void checkout(String sha1Code, String filename) {
-        if (sha1Code.length() != 40) {
-            sha1Code = findID(sha1Code);
-        }
-        File targetCommitFile = join(GITLET_DIR, sha1Code);
-        if (!targetCommitFile.exists()) {
-            System.out.print("No commit with that id exists.");
-            System.exit(0);
-        }
-        HashMap<String, String> targetList = readObject(targetCommitFile, Commit.class).getList();
+        sha1Code = CommitTable.resolve(sha1Code);
+        HashMap<String, String> targetList = ObjectStore.readCommit(sha1Code).getList();
         if (targetList.containsKey(filename)) {
             String sha = targetList.get(filename);
-            File targetFile = join(BLOB_DIR, sha);
-            writeContents(join(CWD, filename), readContents(targetFile));
+            Blob.copyTo(sha, join(CWD, filename));
         } else {
-            System.out.print("File does not exist in that commit.");
-            System.exit(0);
+            throw new GitletException("File does not exist in that commit.");
         }
     }
     /** Checkout case 2: revert back any modification */
     public void checkout(String filename) {
         HashMap<String, String> currentList = currentCommit.getList();
         if (!currentList.containsKey(filename)) {
-            System.out.print("File does not exist in that commit.");
-            System.exit(0);
+            throw new GitletException("File does not exist in that commit.");
         }
-        File targetFile = join(BLOB_DIR, currentList.get(filename));
-        writeContents(join(CWD, filename),  readContents(targetFile));
+        Blob.copyTo(currentList.get(filename), join(CWD, filename));
     }
 
     // Unchecked
@@ -320,41 +287,69 @@ public class Repository {
         }
 
         File checkTo = findBranch(branchName);
-        /** can be fixed better (add compare) */
-        for (String fileName : currentCommit.getList().keySet()) {
-            join(CWD, fileName).delete();
+        int touched = switchTo(ObjectStore.readCommit(readContentsAsString(checkTo)), false);
+        headPos = currentCommit.getID();
+        currentBranchName = branchName;
+        Journal txn = Journal.begin();
+        txn.write(CURRENT_BRANCH, currentBranchName);
+        saveCurrentCommit(txn);
+        System.out.println("Updated " + touched + (touched == 1 ? " file." : " files."));
+    }
+
+    /** Make the working tree and the index match TARGET, writing only the
+     *  paths whose contents differ from it: those changed between the two
+     *  commits, plus tracked files modified or deleted since the head.
+     *  Files staged for addition are deleted as well if DROPSTAGED.
+     *  New contents are all written on the checkout pool before anything
+     *  in the working tree changes, and the head and index only move once
+     *  the tree has been switched; a failure rolls the tree back. Returns
+     *  the number of files written or deleted. */
+    private int switchTo(Commit target, boolean dropStaged) {
+        TreeMap<String, String[]> changes = Tree.diff(currentCommit.getTree(), target.getTree());
+        for (Map.Entry<String, String> f : currentCommit.getList().entrySet()) {
+            String path = f.getKey();
+            File file = join(CWD, path);
+            if (!changes.containsKey(path) && !index.isClean(path, file)
+                    && !(file.isFile() && compareFile(file, f.getValue()))) {
+                changes.put(path, new String[] {f.getValue(), f.getValue()});
+            }
         }
-        currentCommit = readObject(join(GITLET_DIR, readContentsAsString(checkTo)), Commit.class);
-        for (String fileName : currentCommit.getList().keySet()) {
-            checkout(fileName);
+        if (dropStaged) {
+            for (Map.Entry<String, String> s : addStage.entrySet()) {
+                changes.putIfAbsent(s.getKey(), new String[] {s.getValue(), null});
+            }
         }
-        currentBranchName = branchName;
-        writeContents(CURRENT_BRANCH, currentBranchName);
-        writeObject(CURRENT_COMMIT_SAVE, currentCommit);
+        TreeMap<String, String> writes = new TreeMap<>();
+        for (Map.Entry<String, String[]> c : changes.entrySet()) {
+            if (c.getValue()[1] != null) {
+                writes.put(c.getKey(), c.getValue()[1]);
+            }
+        }
+        List<String> deletes = new ArrayList<>();
+        for (Map.Entry<String, String[]> c : changes.entrySet()) {
+            if (c.getValue()[1] == null && join(CWD, c.getKey()).isFile()) {
+                deletes.add(c.getKey());
+            }
+        }
+        Checkout.prepare(writes, Checkout.workers()).install(CWD, deletes);
+
+        currentCommit = target;
+        clearStage();
+        for (String path : writes.keySet()) {
+            index.refresh(path, join(CWD, path));
+        }
+        return deletes.size() + writes.size();
     }
 
     public void branch(String branchName) {
         /** Store the Branch head Commit ID */
         File newBranch = join(BRANCH_DIR, branchName);
-        /** Store the split history */
-        File newBranchSplit = join(SPLIT_DIR, branchName);
-        String splitPointID = currentCommit.getID();
 
         /** Update branch files */
         if (!newBranch.exists()) {
-            writeContents(newBranch, splitPointID);
-            if (branchName.equals("master")) {
-                writeContents(newBranchSplit, splitPointID);
-                return;
-            }
-            File trunkSplit = join(SPLIT_DIR, currentBranchName);
-            String pastSplit = readContentsAsString(trunkSplit);
-            String newSplit = (new StringBuilder())
-                    .append(pastSplit).append(" ")
-                    .append(splitPointID).append(" ")
-                    .toString();
-            writeContents(newBranchSplit, newSplit);
-            writeContents(trunkSplit, newSplit);
+            Journal txn = Journal.begin();
+            txn.update(newBranch, null, currentCommit.getID());
+            txn.commit();
         } else {
             System.out.print("A branch with that name already exists.");
         }
@@ -363,8 +358,7 @@ public class Repository {
     private File findMergeBranch(String branchName) {
         File targetFile = join(BRANCH_DIR, branchName);
         if (!targetFile.exists()) {
-            System.out.print("A branch with that name does not exist.");
-            System.exit(0);
+            throw new GitletException("A branch with that name does not exist.");
         }
         return join(BRANCH_DIR, branchName);
     }
@@ -373,25 +367,14 @@ public class Repository {
     private File findBranch(String branchName) {
         File targetFile = join(BRANCH_DIR, branchName);
         if (!targetFile.exists()) {
-            System.out.print("No such branch exists.");
-            System.exit(0);
+            throw new GitletException("No such branch exists.");
         }
         return join(BRANCH_DIR, branchName);
     }
 
-    /** Return the file that contains the branchHead */
-    private File findSplit(String branchName) {
-        File targetFile = join(SPLIT_DIR, branchName);
-        if (!targetFile.exists()) {
-            System.out.print("No such branch exists.");
-            System.exit(0);
-        }
-        return targetFile;
-    }
-
     private Commit findBranchCommit(String branchName) {
         File target = findBranch(branchName);
-        return readObject(join(GITLET_DIR, readContentsAsString(target)), Commit.class);
+        return ObjectStore.readCommit(readContentsAsString(target));
     }
 
     public void status() {
@@ -403,11 +386,11 @@ public class Repository {
         System.out.println();
 
         System.out.println("=== Staged Files ===");
-        stagePrinter(STAGE_DIR);
+        stagePrinter(addStage.keySet());
         System.out.println();
 
         System.out.println("=== Removed Files ===");
-        stagePrinter(REMOVE_DIR);
+        stagePrinter(removeStage);
         System.out.println();
 
         System.out.println("=== Modifications Not Staged For Commit ===");
@@ -435,42 +418,16 @@ public class Repository {
             System.out.println(i);
         }
     }
-    private void stagePrinter(File dir) {
-        for (String i : plainFilenamesIn(dir)) {
+    private void stagePrinter(Collection<String> names) {
+        for (String i : new TreeSet<>(names)) {
             System.out.println(i);
         }
     }
 
-    private boolean compareFile(File a1, File a2) {
-        byte[] a = readContents(a1);
-        byte[] b = readContents(a2);
-        return Arrays.equals(a, b);
-    }
-
-    private void branchBuilderHelper(Commit c) {
-        commitHistory.put(c.getID(), c);
-        if (c.getParent() == null) {
-            return;
-        }
-        File parent = join(GITLET_DIR, c.getParent());
-        branchBuilderHelper(readObject(parent, Commit.class));
-    }
-
-    private void branchBuilder() {
-        branchBuilderHelper(currentCommit);
-    }
-
-    private void stageBuilder() {
-        for (String i : plainFilenamesIn(STAGE_DIR)) {
-            File stagedFile = join(STAGE_DIR, i);
-            addStage.put(i, sha1(readContents(stagedFile)));
-        }
-    }
-
-    private void removeStageBuilder() {
-        for (String i : plainFilenamesIn(REMOVE_DIR)) {
-            removeStage.add(i);
-        }
+    /** True if FILE holds exactly the contents of blob SHA. Blob ids are
+     *  content hashes, so hashing the file is enough. */
+    private boolean compareFile(File file, String sha) {
+        return Blob.matches(sha, file);
     }
 
     public void merge(String branchName) {
@@ -491,8 +448,8 @@ public class Repository {
         findMergeBranch(branchName);
 
         Commit B = findBranchCommit(branchName);
-        Commit S = findSplitCommit(branchName);
         Commit H = currentCommit;
+        Commit S = findSplitCommit(branchName);
         if (B.getID().equals(S.getID())) {
             System.out.println("Given branch is an ancestor of the current branch.");
             return;
@@ -501,82 +458,70 @@ public class Repository {
             checkoutBranch(branchName);
             return;
         }
-        Map<String, String> bCf = B.getList();
-        Map<String, String> sCf = S.getList();
-        Map<String, String> hCf = H.getList();
+        /** Only paths changed on some side since the split can need work;
+         *  subtrees equal to the split's are never opened. */
+        Map<String, String[]> toB = Tree.diff(S.getTree(), B.getTree());
+        Map<String, String[]> toH = Tree.diff(S.getTree(), H.getTree());
         Set<String> total = new HashSet<>();
-        total.addAll(bCf.keySet());
-        total.addAll(sCf.keySet());
-        total.addAll(hCf.keySet());
+        total.addAll(toB.keySet());
+        total.addAll(toH.keySet());
         boolean isConflict = false;
+        /** A file renamed on one side is merged under its new name, so an
+         *  edit made under the old name on the other side is kept. */
+        Map<String, String> renB = Renames.detect(toB);
+        Map<String, String> renH = Renames.detect(toH);
+        TreeSet<String> renamed = new TreeSet<>(renB.keySet());
+        renamed.addAll(renH.keySet());
+        for (String p : renamed) {
+            String hPath = renH.getOrDefault(p, p);
+            String bPath = renB.getOrDefault(p, p);
+            if ((!bPath.equals(p) && toH.containsKey(bPath))
+                    || (!hPath.equals(p) && toB.containsKey(hPath))) {
+                /* The other side has its own file at the new name. */
+                continue;
+            }
+            if (!hPath.equals(p) && !bPath.equals(p) && !hPath.equals(bPath)) {
+                /* Renamed to different names on the two sides: both new
+                 *  paths are left to the loop below, which keeps the one
+                 *  in HEAD and adds the other branch's. */
+                isConflict = true;
+                continue;
+            }
+            String s = (toB.containsKey(p) ? toB.get(p) : toH.get(p))[0];
+            String[] h = toH.get(hPath);
+            String[] b = toB.get(bPath);
+            isConflict |= renameMerger(p, renH.containsKey(p) ? hPath : bPath,
+                    s, h != null ? h[1] : s, b != null ? b[1] : s);
+            total.removeAll(List.of(p, hPath, bPath));
+        }
         for (String i : total) {
-            isConflict |= fileMerger(i, bCf, hCf, sCf);
+            String[] b = toB.get(i);
+            String[] h = toH.get(i);
+            String s = b != null ? b[0] : h[0];
+            isConflict |= fileMerger(i, b != null ? b[1] : s, h != null ? h[1] : s, s);
         }
         if (isConflict) {
             System.out.println("Encountered a merge conflict.");
         }
         mergeCommit(currentBranchName, branchName, H.getID(), B.getID());
-        updateHeadSplit(branchName, S.getID());
     }
 
 
+    /** The best common ancestor of the current branch and BRANCHNAME,
+     *  found by walking the commit DAG. After criss-cross merges there can
+     *  be several equally good ones; the most recent is used. */
     public Commit findSplitCommit(String branchName) {
-        // currentBranchName
-        String currentSplitHist = readContentsAsString(findSplit(currentBranchName));
-        String branchSplitHist = readContentsAsString(findSplit(branchName));
-        String[] csh = currentSplitHist.split(" ", 0);
-        String[] bsh = branchSplitHist.split(" ", 0);
-
-        HashSet<String> keyCheck = new HashSet<>();
-        for (String i : bsh) {
-            keyCheck.add(i);
-        }
-        int index = csh.length - 1;
-        while (!keyCheck.contains(csh[index])) {
-            index -= 1;
-        }
-        return readObject(join(GITLET_DIR, csh[index]), Commit.class);
-
-//        int cap = Math.min(csh.length, bsh.length);
-//        int i = 0;
-//        String commonSplit = csh[0];
-//        while (i < cap) {
-//            if (csh[i].equals(bsh[i])) {
-//                commonSplit = csh[i];
-//                i++;
-//            }
-//        }
-//        return readObject(join(GITLET_DIR, commonSplit), Commit.class);
-    }
-
-    public void updateHeadSplit(String branchName, String splitPoint) {
-        // currentBranchName
-        String currentSplitHist = readContentsAsString(findSplit(currentBranchName));
-        String branchSplitHist = readContentsAsString(findSplit(branchName));
-        String[] bsh = branchSplitHist.split(" ", 0);
-//        LinkedList<String> csh_save = new LinkedList<>();
-        String newSplit = currentSplitHist;
-//        for (String i : csh) {
-//            csh_save.addLast(i);
-//        }
-        boolean foundSpilt = false;
-        for (String i : bsh) {
-            foundSpilt |= (i.equals(splitPoint));
-            if (i.equals(splitPoint)) {
-                continue;
-            }
-            if (foundSpilt) {
-                newSplit = (new StringBuilder()).append(i).append(" ").toString();
-            }
-        }
-        writeContents(findSplit(currentBranchName), newSplit);
+        CommitGraph graph = CommitGraph.open();
+        int hPos = graph.lookup(currentCommit.getID());
+        int bPos = graph.lookup(readContentsAsString(findBranch(branchName)));
+        List<Integer> bases = MergeBase.bestCommonAncestors(graph, hPos, bPos);
+        return ObjectStore.readCommit(graph.id(bases.get(0)));
     }
 
     public void globalLog() {
-        List<String> allCommits = plainFilenamesIn(GITLET_DIR);
+        List<String> allCommits = ObjectStore.commitIds();
         for (String i : allCommits) {
-            File cif = join(GITLET_DIR, i);
-            Commit ithCommit = readObject(cif, Commit.class);
+            Commit ithCommit = ObjectStore.readCommit(i);
             System.out.println("===");
             System.out.println("commit " + ithCommit.getID());
             if (ithCommit.isMerge()) {
@@ -588,38 +533,38 @@ public class Repository {
         }
     }
 
+    /** Print the ids of commits whose message is exactly CM. */
     public void find(String cm) {
-        List<String> allCommits = plainFilenamesIn(GITLET_DIR);
-        int count = 0;
-        for (String i : allCommits) {
-            File cif = join(GITLET_DIR, i);
-            Commit ithCommit = readObject(cif, Commit.class);
-            if (ithCommit.getMessage().equals(cm)) {
-                System.out.println(ithCommit.getID());
-                count++;
-            }
+        printFound(MessageIndex.open().exact(cm));
+    }
+
+    /** Print the ids of commits with a message word equal to WORD, or
+     *  starting with it if PREFIX. */
+    public void findWord(String word, boolean prefix) {
+        MessageIndex messages = MessageIndex.open();
+        printFound(prefix ? messages.prefix(word) : messages.word(word));
+    }
+
+    private void printFound(List<String> ids) {
+        for (String i : ids) {
+            System.out.println(i);
         }
-        if (count == 0) {
+        if (ids.isEmpty()) {
             System.out.print("Found no commit with that message.");
-            return;
         }
     }
 
     /** Helper function */
     /** update stage and removeStage */
-    private boolean fileMerger(String filename,
-                            Map<String, String> commitB,
-                            Map<String, String> commitH,
-                            Map<String, String> commitS) {
-        String H = commitH.get(filename);
-        String B = commitB.get(filename);
-        String S = commitS.get(filename);
+    private boolean fileMerger(String filename, String B, String H, String S) {
         if (S == null) {
             if (H == null && B != null) {
                 makeFile(filename, B);
                 add(filename);
             } else if (B == null && H != null) {
                 return false;
+            } else if (!Objects.equals(H, B)) {
+                return mergeLines(filename, S, H, B);
             }
         }
         if (S != null) {
@@ -635,22 +580,38 @@ public class Repository {
             } else if (S.equals(H) && !S.equals(B)) {
                 makeFile(filename, B);
                 add(filename);
-            } else if (H.equals(B)) {
+            } else if (Objects.equals(H, B)) {
                 return false;
-            } else if (!H.equals(B)) {
-                conflict(filename, B);
-                add(filename);
-                return true;
+            } else {
+                return mergeLines(filename, S, H, B);
             }
         }
         return false;
     }
 
+    /** Merge a file that was FROM at the split and is TO after the
+     *  merge, given its blobs at the split, in HEAD and in the other
+     *  branch. Returns true if its lines conflicted. */
+    private boolean renameMerger(String from, String to, String S, String H, String B) {
+        if (!from.equals(to) && currentCommit.getList().containsKey(from)) {
+            rm(from);
+        }
+        if ((H == null && B == null) || (H == null && S.equals(B))
+                || (B == null && S.equals(H))) {
+            return false;
+        } else if (H != null && (H.equals(B) || S.equals(B))) {
+            makeFile(to, H);
+        } else if (B != null && S.equals(H)) {
+            makeFile(to, B);
+        } else {
+            return mergeLines(to, S, H, B);
+        }
+        add(to);
+        return false;
+    }
+
     private void makeFile(String fileName, String sha) {
-        File outFile = join(CWD, fileName);
-        File inFile = join(BLOB_DIR, sha);
-        byte[] content = readContents(inFile);
-        writeContents(outFile, content);
+        Blob.copyTo(sha, join(CWD, fileName));
     }
 
     public void removeBranch(String branchName) {
@@ -663,22 +624,12 @@ public class Repository {
             System.out.println("A branch with that name does not exist.");
             return;
         }
-        db.delete();
+        Journal txn = Journal.begin();
+        txn.delete(db);
+        txn.commit();
     }
 
 
-    private String findID(String sID) {
-        int len = sID.length();
-        HashSet<String> allID = new HashSet<>();
-        allID.addAll(plainFilenamesIn(GITLET_DIR));
-        for (String i : allID) {
-            if (i.substring(0, len).equals(sID)) {
-                return i;
-            }
-        }
-        System.out.print("No commit with that id exists.");
-        return "fail";
-    }
     public void reset(String shaCode) {
         untrackBuilder();
         if (!untrackedList.isEmpty()) {
@@ -686,64 +637,186 @@ public class Repository {
                     + " delete it, or add and commit it first.");
             return;
         }
-        File targetFile = join(GITLET_DIR, shaCode);
+        shaCode = CommitTable.resolve(shaCode);
+        String oldHead = headPos;
+        int touched = switchTo(ObjectStore.readCommit(shaCode), true);
+        headPos = currentCommit.getID();
+        /** Update current Branch Head */
+        Journal txn = Journal.begin();
+        txn.update(findBranch(readContentsAsString(CURRENT_BRANCH)), oldHead, headPos);
+        saveCurrentCommit(txn);
+        System.out.println("Updated " + touched + (touched == 1 ? " file." : " files."));
+    }
 
-        if (!targetFile.exists()) {
-            System.out.print("No commit with that id exists.");
+    /** Roll every loose commit and blob into a pack file. */
+    public void repack() {
+        int packed = ObjectStore.repack();
+        CommitGraph.write();
+        System.out.println("Packed " + packed + " objects.");
+    }
+
+    /** Rebuild the commit-graph file over every commit in the store. */
+    public void writeCommitGraph() {
+        System.out.println("Wrote " + CommitGraph.write() + " commits to the commit-graph.");
+    }
+
+    /** Print the value of KEY, or set it to VALUE if one is given. */
+    public void config(String key, String value) {
+        if (value == null) {
+            String v = Config.get(key);
+            if (v != null) {
+                System.out.println(v);
+            }
+        } else {
+            Config.set(key, value);
+            /** Cache budgets take effect at once in a batch or daemon */
+            ObjectStore.reload();
+        }
+    }
+
+    /** Delete the objects no branch, the head or the stage can reach,
+     *  sparing those written within the grace period unless NOW. */
+    public void gc(boolean now) {
+        List<String> roots = new ArrayList<>();
+        for (String branch : plainFilenamesIn(BRANCH_DIR)) {
+            roots.add(readContentsAsString(join(BRANCH_DIR, branch)));
+        }
+        roots.add(currentCommit.getID());
+        long[] result = Collector.run(roots, addStage.values(), now ? 0 : Collector.grace());
+        System.out.println("Removed " + result[0] + (result[0] == 1 ? " object" : " objects")
+                + ", reclaimed " + result[1] + " bytes.");
+    }
+
+    /** Print a unified diff of each file that differs between commit FROM
+     *  (the head if null) and commit TO (the working tree if null), or
+     *  only of PATH if it is not null. Files are compared by blob id, or
+     *  by stat data and contents in the working tree, before any is
+     *  diffed line by line. */
+    public void diff(String from, String to, String path, boolean histogram) {
+        Commit a = from == null ? currentCommit : ObjectStore.readCommit(CommitTable.resolve(from));
+        HashMap<String, String> aFiles = a.getList();
+        if (to != null) {
+            Commit b = ObjectStore.readCommit(CommitTable.resolve(to));
+            for (Map.Entry<String, String[]> c : Tree.diff(a.getTree(), b.getTree()).entrySet()) {
+                if (path == null || path.equals(c.getKey())) {
+                    Diff.unified(c.getKey(), blobSource(c.getValue()[0]),
+                            blobSource(c.getValue()[1]), histogram, System.out);
+                }
+            }
             return;
         }
-        currentCommit = readObject(targetFile, Commit.class);
-        headPos = currentCommit.getID();
-        for (String i : plainFilenamesIn(CWD)) {
-            restrictedDelete(i);
+        TreeSet<String> paths = new TreeSet<>(aFiles.keySet());
+        paths.addAll(currentCommit.getList().keySet());
+        paths.addAll(addStage.keySet());
+        for (String p : path == null ? paths : Set.of(path)) {
+            File f = join(CWD, p);
+            String id = aFiles.get(p);
+            boolean exists = f.isFile();
+            if (!exists && id == null) {
+                continue;
+            }
+            if (exists && id != null && ((a == currentCommit && index.isClean(p, f))
+                    || compareFile(f, id))) {
+                continue;
+            }
+            Diff.unified(p, blobSource(id), exists ? () -> new FileInputStream(f) : null,
+                    histogram, System.out);
         }
-        for (String i : currentCommit.getList().keySet()) {
-            checkout(i);
+    }
+
+    private static Diff.Source blobSource(String id) {
+        return id == null ? null : () -> ObjectStore.openBlob(id);
+    }
+
+    /** Print the object cache and lock counters for this process. */
+    public void stats() {
+        System.out.println(ObjectStore.COMMITS.stats());
+        System.out.println(ObjectStore.BLOBS.stats());
+        System.out.println(RepositoryLock.stats());
+    }
+
+    /** Rewrite commits stored by Java serialization in the binary format. */
+    public void migrate() {
+        int rewritten = CommitCodec.migrate();
+        byte[] head = readContents(CURRENT_COMMIT_SAVE);
+        if (!CommitCodec.isCurrent(head)) {
+            saveCurrentCommit(Journal.begin());
+            rewritten++;
+        }
+        System.out.println("Migrated " + rewritten + " commits.");
+    }
+
+    /** Merge blobs H and B of FILENAME line by line against their split
+     *  version S, any of which may be null, and stage the result.
+     *  Returns true if some lines conflicted. */
+    private boolean mergeLines(String fileName, String S, String H, String B) {
+        File outFile = join(CWD, fileName);
+        File tmp = join(GITLET_DIR, "conflict.tmp");
+        boolean conflict;
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            conflict = Merge3.merge(blobSource(S), blobSource(H), blobSource(B), out);
+        } catch (IOException excp) {
+            tmp.delete();
+            throw new GitletException("Cannot write " + fileName);
+        }
+        outFile.getParentFile().mkdirs();
+        try {
+            Files.move(tmp.toPath(), outFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            throw new GitletException("Cannot write " + fileName);
+        }
+        add(fileName);
+        return conflict;
+    }
+
+    /** Files in the working tree as paths relative to CWD. Subdirectories
+     *  are only entered if something tracked or staged lives in them, so
+     *  unrelated directories next to the repository are left alone. */
+    private List<String> workingFiles() {
+        HashSet<String> dirs = new HashSet<>();
+        for (Collection<String> paths : List.of(currentCommit.getList().keySet(),
+                addStage.keySet(), removeStage)) {
+            for (String p : paths) {
+                for (int i = p.indexOf('/'); i >= 0; i = p.indexOf('/', i + 1)) {
+                    dirs.add(p.substring(0, i));
+                }
+            }
         }
-        writeObject(CURRENT_COMMIT_SAVE, currentCommit);
-        /** Clear Stage, only needs to remove the temp Files in stage */
-        for (String i : plainFilenamesIn(STAGE_DIR)) {
-            File delFile = join(STAGE_DIR, i);
-            delFile.delete();
+        List<String> result = new ArrayList<>();
+        collectFiles(CWD, "", dirs, result);
+        return result;
+    }
+
+    private static void collectFiles(File dir, String prefix, Set<String> dirs,
+                                     List<String> out) {
+        String[] names = dir.list();
+        if (names == null) {
+            return;
         }
-        /** Clear removeStage */
-        for (String i : plainFilenamesIn(REMOVE_DIR)) {
-            File delFile = join(REMOVE_DIR, i);
-            delFile.delete();
+        Arrays.sort(names);
+        for (String name : names) {
+            File f = new File(dir, name);
+            if (f.isFile()) {
+                out.add(prefix + name);
+            } else if (f.isDirectory() && dirs.contains(prefix + name)) {
+                collectFiles(f, prefix + name + "/", dirs, out);
+            }
         }
-        /** Update current Branch Head */
-        File branchFile = findBranch(readContentsAsString(CURRENT_BRANCH));
-        writeContents(branchFile, headPos);
     }
 
-    private void conflict(String fileName, String sha) {
-        String contentHead;
-        String contentBranch;
-        File outFile = join(CWD, fileName);
-        File inFile;
-        if (sha != null) {
-            inFile = join(BLOB_DIR, sha);
-            contentBranch = readContentsAsString(inFile);
-        } else {
-            contentBranch = "";
+    /** Delete working file PATH, then any directories that leaves empty. */
+    private void removeWorkingFile(String path) {
+        File f = join(CWD, path);
+        if (path.indexOf('/') < 0) {
+            restrictedDelete(f);
+            return;
+        }
+        f.delete();
+        File dir = f.getParentFile();
+        while (!dir.equals(CWD) && dir.delete()) {
+            dir = dir.getParentFile();
         }
-        if (outFile.exists()) {
-            contentHead = readContentsAsString(outFile);
-        } else {
-            contentHead = "";
-        }
-        String newSplit = (new StringBuilder())
-                .append("<<<<<<< HEAD")
-                .append("\n")
-                .append(contentHead)
-                .append("=======")
-                .append("\n")
-                .append(contentBranch)
-                .append(">>>>>>>")
-                .append("\n")
-                .toString();
-//        System.out.println(newSplit);
-        writeContents(outFile, newSplit);
     }
 
     private LinkedList<String> untrackedList;
@@ -755,12 +828,27 @@ public class Repository {
         modifiedList = new LinkedList<>();
         deletedList = new LinkedList<>();
         HashSet<String> total = new HashSet<>();
-        for (String i : plainFilenamesIn(CWD)) {
+        for (String i : workingFiles()) {
             total.add(i);
         }
         total.addAll(currentCommit.getList().keySet());
-        for (String j : total) {
-            switch (untrackChecker(j)) {
+        /** Classify in parallel, then collect in the set's own order */
+        String[] paths = total.toArray(new String[0]);
+        String[] kinds = new String[paths.length];
+        StatusTask all = new StatusTask(paths, kinds, 0, paths.length);
+        if (paths.length <= STATUS_CHUNK) {
+            all.compute();
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(Config.threads(STATUS_WORKERS_KEY));
+            try {
+                pool.invoke(all);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        for (int k = 0; k < paths.length; k++) {
+            String j = paths[k];
+            switch (kinds[k]) {
                 case "untrack":
                     untrackedList.add(j);
                     break;
@@ -770,6 +858,9 @@ public class Repository {
                 case "modified":
                     modifiedList.add(j);
                     break;
+                case "refresh":
+                    index.refresh(j, join(CWD, j));
+                    break;
                 case "tracked":
                     break;
                 default:
@@ -778,17 +869,53 @@ public class Repository {
         }
     }
 
+    /** Config key for the number of status threads. */
+    private static final String STATUS_WORKERS_KEY = "status.workers";
+    /** Most paths one status task checks without splitting. */
+    private static final int STATUS_CHUNK = 64;
+
+    /** Runs untrackChecker over PATHS[from, to), storing into KINDS. Each
+     *  task owns its slice of KINDS, so tasks share nothing mutable. */
+    private class StatusTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final String[] paths;
+        private final String[] kinds;
+        private final int from;
+        private final int to;
+
+        StatusTask(String[] paths, String[] kinds, int from, int to) {
+            this.paths = paths;
+            this.kinds = kinds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= STATUS_CHUNK) {
+                for (int i = from; i < to; i++) {
+                    kinds[i] = untrackChecker(paths[i]);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new StatusTask(paths, kinds, from, mid),
+                    new StatusTask(paths, kinds, mid, to));
+        }
+    }
+
+    /** Files that status never reports. */
+    private static final Set<String> SYS_FILES = Set.of("log", "gitlet-design.md",
+            "Makefile", "pom.xml", "proj2.iml");
 
 
+
+    /** Classify one path. Runs on status threads, so it only reads shared
+     *  state; a tracked file found unchanged by reading it is returned as
+     *  "refresh" for the caller to record in the stat cache. */
     private String untrackChecker(String fileName) {
         File i = join(CWD, fileName);
-        HashSet<String> sysFile = new HashSet<>();
-        sysFile.add("log");
-        sysFile.add("gitlet-design.md");
-        sysFile.add("Makefile");
-        sysFile.add("pom.xml");
-        sysFile.add("proj2.iml");
-        if (!sysFile.contains(fileName) && !addStage.keySet().contains(fileName)) {
+        if (!SYS_FILES.contains(fileName) && !addStage.keySet().contains(fileName)) {
             // Untracked
             if (!currentCommit.getList().keySet().contains(fileName)
                     | (i.exists() && removeStage.contains(fileName))) {
@@ -798,10 +925,13 @@ public class Repository {
                 return "deleted";
             } else if (currentCommit.getList().keySet().contains(fileName)
                     && i.exists()) {
-                File oldVersion = join(BLOB_DIR, currentCommit.getList().get(fileName));
-                if (!compareFile(oldVersion, i)) {
+                if (index.isClean(fileName, i)) {
+                    return "tracked";
+                }
+                if (!compareFile(i, currentCommit.getList().get(fileName))) {
                     return "modified";
                 }
+                return "refresh";
             }
         }
         return "tracked";
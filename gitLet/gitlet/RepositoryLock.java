@@ -0,0 +1,152 @@
+package gitlet;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+
+import static gitlet.Utils.*;
+
+/** Lock on one repository, held by a process for the length of a command.
+ *
+ *  .gitlet/lock has two one-byte regions. WRITER is held exclusively by
+ *  any command that changes the repository, so writers run one at a
+ *  time. READERS is held shared by every command, and exclusively only
+ *  by commands that delete objects (gc, repack), so a reader never waits
+ *  for an ordinary writer: refs are replaced by atomic renames and the
+ *  objects they name are written first, so whatever a reader sees is
+ *  whole. A reader takes WRITER only with tryLock, to finish a crashed
+ *  journal, to save refreshed stat data in the index, or to save the
+ *  commit-id table or message index it rebuilt; when WRITER is busy
+ *  they are kept in memory for the one command.
+ *
+ *  Time spent waiting is kept for the stats command.
+ */
+class RepositoryLock implements AutoCloseable {
+
+    static final File LOCK_FILE = join(Repository.GITLET_DIR, "lock");
+    private static final long WRITER = 0;
+    private static final long READERS = 1;
+
+    /** Commands that only read the repository. */
+    private static final Set<String> READ_ONLY = Set.of("log", "status", "global-log",
+            "find", "stats", "diff");
+    /** Commands that delete objects readers may be using. */
+    private static final Set<String> DESTRUCTIVE = Set.of("gc", "repack");
+
+    /** The lock of the command running in this process, if any. */
+    private static RepositoryLock current;
+
+    /** Counters for this process. */
+    private static long acquired;
+    private static long waited;
+    private static long waitNanos;
+    private static long maxWaitNanos;
+
+    private final FileChannel channel;
+    private FileLock writer;
+    private FileLock readers;
+
+    private RepositoryLock(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /** Lock the repository as COMMAND needs, waiting for other processes
+     *  if necessary, and finish any journal a crash left behind. Returns
+     *  null if there is no repository to lock. */
+    static RepositoryLock acquire(String command) {
+        if (!Repository.GITLET_DIR.isDirectory()) {
+            return null;
+        }
+        RepositoryLock lock;
+        try {
+            lock = new RepositoryLock(FileChannel.open(LOCK_FILE.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+        } catch (IOException excp) {
+            throw new GitletException("Cannot open the repository lock.");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!READ_ONLY.contains(command)) {
+                lock.writer = lock.channel.lock(WRITER, 1, false);
+            }
+            lock.readers = lock.channel.lock(READERS, 1, !DESTRUCTIVE.contains(command));
+        } catch (IOException excp) {
+            lock.close();
+            throw new GitletException("Cannot lock the repository.");
+        }
+        record(System.nanoTime() - start);
+        current = lock;
+        if (lock.writer != null) {
+            Journal.recover();
+        } else if (lock.canWrite()) {
+            /* A reader must not hold WRITER for the whole command. */
+            try {
+                Journal.recover();
+            } finally {
+                lock.releaseWriter();
+            }
+        }
+        return lock;
+    }
+
+    private static synchronized void record(long nanos) {
+        acquired++;
+        /* Uncontended locks still take a few microseconds. */
+        if (nanos > 1_000_000) {
+            waited++;
+        }
+        waitNanos += nanos;
+        maxWaitNanos = Math.max(maxWaitNanos, nanos);
+    }
+
+    /** True if this process may change the repository: it holds WRITER,
+     *  taking it now if no other process does. */
+    boolean canWrite() {
+        if (writer == null) {
+            try {
+                writer = channel.tryLock(WRITER, 1, false);
+            } catch (IOException excp) {
+                return false;
+            }
+        }
+        return writer != null;
+    }
+
+    /** True if this process may replace files other commands read, such
+     *  as the tables rebuilt on demand: the command in progress holds or
+     *  can take WRITER, or runs without a repository lock at all. */
+    static boolean writable() {
+        return current == null || current.canWrite();
+    }
+
+    private void releaseWriter() {
+        try {
+            writer.release();
+        } catch (IOException excp) {
+            throw new GitletException("Cannot unlock the repository.");
+        }
+        writer = null;
+    }
+
+    /** One line of counters for the stats command. */
+    static synchronized String stats() {
+        return String.format("lock: %d acquired, %d waited, %.1f ms waiting, %.1f ms longest",
+                acquired, waited, waitNanos / 1e6, maxWaitNanos / 1e6);
+    }
+
+    @Override
+    public void close() {
+        if (current == this) {
+            current = null;
+        }
+        try {
+            /* Closing the channel releases both regions. */
+            channel.close();
+        } catch (IOException excp) {
+            return;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package gitlet;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.BiConsumer;
+
+import static gitlet.Utils.*;
+
+/** One directory of a commit: file names to blob ids and subdirectory
+ *  names to tree ids.
+ *
+ *  "GT" version count(varint), then the entries sorted by name, each
+ *  kind(byte) name(varint length + UTF-8) id(20), where kind is FILE or
+ *  DIR. A tree's id is the SHA1 of that encoding, so an unchanged
+ *  directory keeps its id and is shared by every commit that has it.
+ *  Paths handed to this class are relative and use '/' between names.
+ */
+class Tree {
+
+    static final int VERSION = 1;
+    private static final byte MAGIC_0 = 'G';
+    private static final byte MAGIC_1 = 'T';
+    private static final int FILE = 0;
+    private static final int DIR = 1;
+
+    private final TreeMap<String, String> files = new TreeMap<>();
+    private final TreeMap<String, String> dirs = new TreeMap<>();
+
+    /** The tree with id ID, or an empty one if ID is null. */
+    static Tree read(String id) {
+        Tree t = new Tree();
+        if (id == null) {
+            return t;
+        }
+        byte[] data = ObjectStore.readTree(id);
+        CommitCodec.In in = new CommitCodec.In(data);
+        if (in.get() != MAGIC_0 || in.get() != MAGIC_1 || in.get() != VERSION) {
+            throw new GitletException("Unsupported tree format in " + id);
+        }
+        int count = (int) in.getVarint();
+        for (int i = 0; i < count; i++) {
+            int kind = in.get();
+            String name = in.getString();
+            (kind == DIR ? t.dirs : t.files).put(name, in.getId());
+        }
+        return t;
+    }
+
+    private byte[] encode() {
+        TreeSet<String> names = new TreeSet<>(files.keySet());
+        names.addAll(dirs.keySet());
+        CommitCodec.Out out = new CommitCodec.Out(8 + names.size() * 40);
+        out.put(MAGIC_0);
+        out.put(MAGIC_1);
+        out.put(VERSION);
+        out.putVarint(files.size() + dirs.size());
+        for (String name : names) {
+            /* A name is never both a file and a directory in one tree. */
+            boolean dir = dirs.containsKey(name);
+            out.put(dir ? DIR : FILE);
+            out.putString(name);
+            out.putId(dir ? dirs.get(name) : files.get(name));
+        }
+        return out.toByteArray();
+    }
+
+    /** Store this tree and return its id. */
+    private String write() {
+        byte[] data = encode();
+        String id = sha1((Object) data);
+        ObjectStore.writeTree(id, data);
+        return id;
+    }
+
+    /** Store the trees for FILES, a path to blob id map, and return the
+     *  id of the root. */
+    static String write(Map<String, String> files) {
+        return update(null, files);
+    }
+
+    /** The id of tree BASE (null for an empty tree) with CHANGES applied,
+     *  where CHANGES maps paths to new blob ids, or to null to delete
+     *  them. Only directories along changed paths are written again. */
+    static String update(String base, Map<String, String> changes) {
+        String id = apply(base, changes);
+        return id != null ? id : new Tree().write();
+    }
+
+    /** As update, but null if the result is empty so that empty
+     *  subdirectories disappear. */
+    private static String apply(String base, Map<String, String> changes) {
+        if (changes.isEmpty() && base != null) {
+            return base;
+        }
+        Tree t = read(base);
+        TreeMap<String, Map<String, String>> below = new TreeMap<>();
+        for (Map.Entry<String, String> c : changes.entrySet()) {
+            String path = c.getKey();
+            int slash = path.indexOf('/');
+            if (slash < 0) {
+                if (c.getValue() == null) {
+                    t.files.remove(path);
+                } else {
+                    t.files.put(path, c.getValue());
+                }
+            } else {
+                below.computeIfAbsent(path.substring(0, slash), k -> new HashMap<>())
+                        .put(path.substring(slash + 1), c.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> sub : below.entrySet()) {
+            String id = apply(t.dirs.get(sub.getKey()), sub.getValue());
+            if (id == null) {
+                t.dirs.remove(sub.getKey());
+            } else {
+                t.dirs.put(sub.getKey(), id);
+            }
+        }
+        return t.files.isEmpty() && t.dirs.isEmpty() ? null : t.write();
+    }
+
+    /** Every file under tree ID as a path to blob id map. */
+    static HashMap<String, String> flatten(String id) {
+        HashMap<String, String> result = new HashMap<>();
+        walk(id, "", null, result::put);
+        return result;
+    }
+
+    /** Call VISIT with the path and blob id of every file under tree ID,
+     *  prefixing paths with PREFIX. If SEEN is not null, a subtree already
+     *  in it at the same path is skipped, and every visited one is added. */
+    static void walk(String id, String prefix, HashSet<String> seen,
+                     BiConsumer<String, String> visit) {
+        if (seen != null && !seen.add(prefix + id)) {
+            return;
+        }
+        Tree t = read(id);
+        for (Map.Entry<String, String> f : t.files.entrySet()) {
+            visit.accept(prefix + f.getKey(), f.getValue());
+        }
+        for (Map.Entry<String, String> d : t.dirs.entrySet()) {
+            walk(d.getValue(), prefix + d.getKey() + "/", seen, visit);
+        }
+    }
+
+    /** Add tree ID and every tree and blob under it to TREES and BLOBS,
+     *  skipping subtrees already in TREES. Safe to call from several
+     *  threads if the sets are. */
+    static void mark(String id, Set<String> trees, Set<String> blobs) {
+        if (!trees.add(id)) {
+            return;
+        }
+        Tree t = read(id);
+        blobs.addAll(t.files.values());
+        for (String sub : t.dirs.values()) {
+            mark(sub, trees, blobs);
+        }
+    }
+
+    /** Paths that differ between trees A and B (either may be null), each
+     *  mapped to {blob in A, blob in B} with null for a missing side.
+     *  Subtrees with the same id on both sides are never opened. */
+    static TreeMap<String, String[]> diff(String a, String b) {
+        TreeMap<String, String[]> result = new TreeMap<>();
+        diff(a, b, "", result);
+        return result;
+    }
+
+    private static void diff(String a, String b, String prefix, TreeMap<String, String[]> out) {
+        if (Objects.equals(a, b)) {
+            return;
+        }
+        Tree ta = read(a);
+        Tree tb = read(b);
+        TreeSet<String> names = new TreeSet<>(ta.files.keySet());
+        names.addAll(tb.files.keySet());
+        for (String name : names) {
+            String va = ta.files.get(name);
+            String vb = tb.files.get(name);
+            if (!Objects.equals(va, vb)) {
+                out.put(prefix + name, new String[] {va, vb});
+            }
+        }
+        names = new TreeSet<>(ta.dirs.keySet());
+        names.addAll(tb.dirs.keySet());
+        for (String name : names) {
+            diff(ta.dirs.get(name), tb.dirs.get(name), prefix + name + "/", out);
+        }
+    }
+}